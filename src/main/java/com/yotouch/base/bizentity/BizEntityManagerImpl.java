@@ -5,9 +5,12 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 import javax.annotation.PostConstruct;
 
@@ -27,8 +30,6 @@ import com.yotouch.core.config.Configure;
 import com.yotouch.core.entity.EntityManager;
 import com.yotouch.core.entity.EntityManagerImpl;
 import com.yotouch.core.entity.MetaEntity;
-import com.yotouch.core.entity.MetaEntityImpl;
-import com.yotouch.core.entity.MetaFieldImpl;
 import com.yotouch.core.workflow.Workflow;
 import com.yotouch.core.workflow.WorkflowManager;
 
@@ -49,23 +50,52 @@ public class BizEntityManagerImpl implements BizEntityManager {
     @Autowired
     private DbSession dbSession;
     
-    private Map<String, BizMetaEntityImpl> entityNamedMap;
-    
-    private Map<String, BizMetaEntityImpl> wfNamedMap;
+    // published bindings with the workflows they were made with, replaced as a whole
+    private volatile Bindings bindings = new Bindings();
+
+    // only touched under the lock while bindings are built
+    private Bindings loading;
+    private Function<String, Workflow> loadingWorkflows;
+    private Map<String, List<Map<String, Object>>> wfFields;
     
     public BizEntityManagerImpl() {
     }
     
-    public void reload() {
-        ((WorkflowManagerImpl)wfMgr).reload();
-        this.init();
+    /**
+     * Workflows are built without publishing them, the bindings are made against the new ones and both are
+     * published together. The workflow fields of new bindings are added through EntityManager before that.
+     */
+    public synchronized void reload() {
+        WorkflowManagerImpl wfMgrImpl = (WorkflowManagerImpl) wfMgr;
+        Map<String, Workflow> workflows = wfMgrImpl.loadWorkflows();
+
+        Bindings b = this.build(workflows::get);
+
+        wfMgrImpl.publish(workflows);
+        this.bindings = b;
     }
 
     @PostConstruct
-    public void init() {
+    public synchronized void init() {
+        this.bindings = this.build(wfMgr::getWorkflow);
+    }
+
+    private Bindings build(Function<String, Workflow> workflows) {
+        this.loading = new Bindings();
+        this.loadingWorkflows = workflows;
+        this.wfFields = new LinkedHashMap<>();
+        try {
+            this.loadBindings();
+            ((EntityManagerImpl) this.entityMgr).addExtraFields(this.wfFields);
+            return this.loading;
+        } finally {
+            this.loading = null;
+            this.loadingWorkflows = null;
+            this.wfFields = null;
+        }
+    }
 
-        this.entityNamedMap = new HashMap<>();
-        this.wfNamedMap = new HashMap<>();
+    private void loadBindings() {
 
         PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
         try {
@@ -101,9 +131,6 @@ public class BizEntityManagerImpl implements BizEntityManager {
         }
 
         loadDbBizEntity();
-
-        ((EntityManagerImpl) this.entityMgr).rebuildDb();
-
     }
 
     private void loadDbBizEntity() {
@@ -117,14 +144,12 @@ public class BizEntityManagerImpl implements BizEntityManager {
             Entity wfEntity = be.sr(dbSession, "workflow");
             String meUuid = be.v("metaEntity");
 
-            Workflow wf = wfMgr.getWorkflow(wfEntity.v("name"));
+            Workflow wf = this.loadingWorkflows.apply(wfEntity.v("name"));
             MetaEntity me = entityMgr.getMetaEntity(meUuid);
             
             fillWfFields(me);
 
-            BizMetaEntityImpl bme = new BizMetaEntityImpl(wf, me);
-            this.entityNamedMap.put(me.getName(), bme);
-            this.wfNamedMap.put(wf.getName(), bme);
+            this.loading.add(new BizMetaEntityImpl(wf, entityMgr, me.getName()));
         }
     }
     
@@ -147,14 +172,12 @@ public class BizEntityManagerImpl implements BizEntityManager {
             String workflowName = beMap.get("workflow");
             String entityName = beMap.get("entity");
 
-            Workflow wf = wfMgr.getWorkflow(workflowName);
+            Workflow wf = this.loadingWorkflows.apply(workflowName);
             MetaEntity me = entityMgr.getMetaEntity(entityName);
 
             fillWfFields(me);
 
-            BizMetaEntityImpl bme = new BizMetaEntityImpl(wf, me);
-            this.entityNamedMap.put(me.getName(), bme);
-            this.wfNamedMap.put(wf.getName(), bme);
+            this.loading.add(new BizMetaEntityImpl(wf, entityMgr, me.getName()));
         }
 
         //((EntityManagerImpl)this.entityMgr).rebuildDb();
@@ -175,42 +198,46 @@ public class BizEntityManagerImpl implements BizEntityManager {
         }
     }
 
+    // the published MetaEntity is left alone, EntityManager publishes a copy with the fields
     private void fillWfFields(MetaEntity me) {
         
-        MetaEntityImpl mei = (MetaEntityImpl) me;
+        List<Map<String, Object>> fields = new ArrayList<>();
         
-        if (me.getMetaField(Consts.BIZ_ENTITY_FIELD_WORKFLOW) == null) {
-            
-            Map<String, Object> fr = new HashMap<>();
-            fr.put("name", Consts.BIZ_ENTITY_FIELD_WORKFLOW);
-            fr.put("dataType", Consts.META_FIELD_DATA_TYPE_UUID);
-            
-            MetaFieldImpl<?> mfi = MetaFieldImpl.build(entityMgr, fr);
-            mei.addField(mfi);
-            mfi.setMetaEntity(mei);
-            
-        }
+        Map<String, Object> fr = new HashMap<>();
+        fr.put("name", Consts.BIZ_ENTITY_FIELD_WORKFLOW);
+        fr.put("dataType", Consts.META_FIELD_DATA_TYPE_UUID);
+        fields.add(fr);
         
-        if (me.getMetaField(Consts.BIZ_ENTITY_FIELD_STATE) == null) {
-            Map<String, Object> fr = new HashMap<>();
-            fr.put("name", Consts.BIZ_ENTITY_FIELD_STATE);
-            fr.put("dataType", Consts.META_FIELD_DATA_TYPE_UUID);
-            
-            MetaFieldImpl<?> mfi = MetaFieldImpl.build(entityMgr, fr);
-            mei.addField(mfi);
-            mfi.setMetaEntity(mei);
-        }
+        fr = new HashMap<>();
+        fr.put("name", Consts.BIZ_ENTITY_FIELD_STATE);
+        fr.put("dataType", Consts.META_FIELD_DATA_TYPE_UUID);
+        fields.add(fr);
         
+        this.wfFields.put(me.getName(), fields);
     }
 
     @Override
     public BizMetaEntity getBizMetaEntityByEntity(String entityName) {
-        return this.entityNamedMap.get(entityName);
+        return this.bindings.byEntity.get(entityName);
     }
 
     @Override
     public BizMetaEntity getBizMetaEntityByWorkflow(String wfName) {
-        return this.wfNamedMap.get(wfName);
+        return this.bindings.byWorkflow.get(wfName);
+    }
+
+    /**
+     * Entity and workflow name to BizMetaEntity, not changed any more once published
+     */
+    private static class Bindings {
+
+        private final Map<String, BizMetaEntityImpl> byEntity = new HashMap<>();
+        private final Map<String, BizMetaEntityImpl> byWorkflow = new HashMap<>();
+
+        void add(BizMetaEntityImpl bme) {
+            this.byEntity.put(bme.getMetaEntity().getName(), bme);
+            this.byWorkflow.put(bme.getWorkflow().getName(), bme);
+        }
     }
 
 }
@@ -1,16 +1,20 @@
 package com.yotouch.base.bizentity;
 
+import com.yotouch.core.entity.EntityManager;
 import com.yotouch.core.entity.MetaEntity;
 import com.yotouch.core.workflow.Workflow;
 
 public class BizMetaEntityImpl implements BizMetaEntity {
     
     private Workflow wf;
-    private MetaEntity me;
+    private EntityManager entityMgr;
+    private String meName;
 
-    public BizMetaEntityImpl(Workflow wf, MetaEntity me) {
+    // the MetaEntity is looked up by name, an EntityManager reload replaces it
+    public BizMetaEntityImpl(Workflow wf, EntityManager entityMgr, String meName) {
         this.wf = wf;
-        this.me = me;
+        this.entityMgr = entityMgr;
+        this.meName = meName;
     }
 
     @Override
@@ -20,7 +24,7 @@ public class BizMetaEntityImpl implements BizMetaEntity {
 
     @Override
     public MetaEntity getMetaEntity() {
-        return me;
+        return entityMgr.getMetaEntity(meName);
     }
 
 }
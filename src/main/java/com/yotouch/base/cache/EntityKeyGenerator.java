@@ -2,6 +2,7 @@ package com.yotouch.base.cache;
 
 import com.yotouch.core.entity.MetaEntity;
 import com.yotouch.core.runtime.DbSession;
+import com.yotouch.core.runtime.EntityCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +29,7 @@ public class EntityKeyGenerator implements KeyGenerator {
                     MetaEntity me = (MetaEntity) params[0];
                     String uuid = (String) params[1];
 
-                    return "Entity:" + me.getName() + ":" + uuid;
+                    return EntityCache.key(me.getName(), uuid);
                 }
             }
         }
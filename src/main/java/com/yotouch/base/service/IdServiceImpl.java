@@ -1,24 +1,69 @@
 package com.yotouch.base.service;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
 
 import com.yotouch.core.Consts;
 import com.yotouch.core.entity.Entity;
 import com.yotouch.core.runtime.DbSession;
-import org.springframework.util.StringUtils;
-
-import javax.annotation.PostConstruct;
-import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Sequences kept in the `prop` entity, handed out from blocks reserved with one atomic UPDATE.
+ * The block size is `yotouch.id.blockSize.<name>`, `yotouch.id.blockSize` by default.
+ * Ids are unique across nodes and increasing per node; ids left in a block are lost when the node stops.
+ */
 @Service
 public class IdServiceImpl implements IdService {
 
-    Map<String, Object> syncKeys;
+    private static final Logger logger = LoggerFactory.getLogger(IdServiceImpl.class);
+
+    @Value("${yotouch.id.blockSize:100}")
+    private int defaultBlockSize;
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Autowired
+    private DbSession dbSession;
+
+    // blocks are reserved in their own transaction, a rolled back caller must not give an id out twice
+    private TransactionTemplate reserveTx;
+
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    private final Map<String, Object> reserveLocks = new ConcurrentHashMap<>();
+
+    // prop.name must be unique, or two nodes creating a sequence would both count from 0
+    private boolean uniqueName;
 
     @PostConstruct
     void init() {
-        this.syncKeys = new HashMap<>();
+        this.reserveTx = new TransactionTemplate(txManager);
+        this.reserveTx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        // at startup, the ALTER TABLE would commit a caller's open transaction
+        this.uniqueName = this.dbSession.ensureUniqueKey("prop", "uk_prop_name", "name");
+        if (!this.uniqueName) {
+            logger.error("No unique key on prop.name, sequences created by two nodes at once may hand out the same ids");
+        }
     }
 
     @Override
@@ -33,39 +78,82 @@ public class IdServiceImpl implements IdService {
             name = "DEFAULT_SEQ";
         }
 
-        Object key = this.getSyncKey(name);
+        while (true) {
+            Segment seg = this.segments.get(name);
+            if (seg != null) {
+                long id = seg.next();
+                if (id > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Sequence " + name + " passed " + Integer.MAX_VALUE);
+                }
+                if (id >= 0) {
+                    return (int) id;
+                }
+            }
 
-        synchronized (key) {
-            Entity prop = dbSession.queryOneRawSql(
-                    "prop",
-                    "name = ?",
-                    new Object[]{name}
-            );
+            Object lock = this.reserveLocks.computeIfAbsent(name, k -> new Object());
+            synchronized (lock) {
+                // another thread may have reserved a block while this one was waiting
+                if (this.segments.get(name) == seg) {
+                    this.segments.put(name, this.reserve(dbSession, name));
+                }
+            }
+        }
+    }
 
-            int currentSeq = 0;
+    private int getBlockSize(String name) {
+        int size = this.env.getProperty("yotouch.id.blockSize." + name, Integer.class, this.defaultBlockSize);
+        return size > 0 ? size : 1;
+    }
+
+    private Segment reserve(DbSession dbSession, String name) {
+        int blockSize = this.getBlockSize(name);
+
+        long last = this.reserveTx.execute(status -> {
+            Entity prop = dbSession.queryOneRawSql("prop", "name = ?", new Object[]{name});
             if (prop == null) {
-                prop = dbSession.newEntity("prop", Consts.STATUS_NORMAL);
-                prop.setValue("name", name);
-                prop = dbSession.save(prop);
-            } else {
-                currentSeq = Integer.parseInt(prop.v("value"));
+                // the unique key lets only one node create it, the others read the winner's row
+                if (!this.uniqueName) {
+                    logger.warn("Create sequence " + name + " without a unique key on prop.name");
+                }
+                Entity created = dbSession.newEntity("prop", Consts.STATUS_NORMAL);
+                created.setValue("name", name);
+                created.setValue("value", "0");
+                if (dbSession.insertIgnore(created)) {
+                    prop = created;
+                } else {
+                    // a locking read sees the committed row, a plain one would still use this transaction's snapshot
+                    List<Entity> props = dbSession.queryRawSql("prop", "name = ? FOR UPDATE", new Object[]{name});
+                    prop = props.get(0);
+                }
             }
 
-            currentSeq += 1;
+            Number v = dbSession.increase("prop", prop.getUuid(), "value", blockSize);
+            return v.longValue();
+        });
 
-            prop.setValue("value", currentSeq + "");
-            dbSession.save(prop);
+        logger.info("Reserve ids " + (last - blockSize + 1) + " - " + last + " of " + name);
+        return new Segment(last - blockSize + 1, last);
+    }
 
-            return currentSeq;
+    /**
+     * Ids first to last, handed out without locks
+     */
+    private static class Segment {
+
+        private final AtomicLong next;
+        private final long last;
+
+        Segment(long first, long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
         }
-    }
 
-    private Object getSyncKey(String name) {
-        if (this.syncKeys.containsKey(name)) {
-            return this.syncKeys.get(name);
-        } else {
-            this.syncKeys.put(name, new Object());
-            return this.syncKeys.get(name);
+        /**
+         * @return the next id, -1 when the block is used up
+         */
+        long next() {
+            long id = this.next.getAndIncrement();
+            return id <= this.last ? id : -1;
         }
     }
 
@@ -0,0 +1,190 @@
+package com.yotouch.base.service;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.entity.EntityImpl;
+import com.yotouch.core.entity.EntityManager;
+import com.yotouch.core.entity.MetaEntity;
+import com.yotouch.core.runtime.EntityChangeListener;
+
+/**
+ * Login tokens already checked by UserServiceImpl.checkLoginUser, with a snapshot of their user.
+ * Entries are dropped after the transaction saving or deleting the user row through DbSession commits, so a changed
+ * password or status takes effect on the next request. Other entities are ignored without a look at the cache.
+ */
+@Component
+public class LoginTokenCache implements EntityChangeListener {
+
+    @Value("${yotouch.login.tokenCache.maxSize:10000}")
+    private long maxSize;
+
+    @Value("${yotouch.login.tokenCache.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    @Autowired
+    private EntityManager entityMgr;
+
+    private Cache<String, CachedLogin> tokens;
+
+    // entity name -> user uuid -> tokens, kept in step with the cache by its removal listener
+    private final Map<String, Map<String, Set<String>>> tokensByUser = new ConcurrentHashMap<>();
+
+    // entity names of the cached users, the changes of any other entity are ignored
+    private final Set<String> loginEntities = ConcurrentHashMap.newKeySet();
+
+    // bumped by every eviction, a user loaded before one is not cached
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        // a replaced entry leaves the token cached, it stays indexed
+        RemovalListener<String, CachedLogin> unindex = n -> {
+            if (n.getCause() != RemovalCause.REPLACED) {
+                this.unindex(n.getKey(), n.getValue());
+            }
+        };
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .removalListener(unindex)
+                .build();
+    }
+
+    /**
+     * Taken before loading a user, for put
+     */
+    public long stamp() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return a new copy of the user of the token, null if the token isn't cached
+     */
+    public Entity get(String token) {
+        CachedLogin login = this.tokens.getIfPresent(token);
+        if (login == null) {
+            return null;
+        }
+
+        MetaEntity me = this.entityMgr.getMetaEntity(login.entityName);
+        return EntityImpl.fromSnapshot(me, login.values);
+    }
+
+    /**
+     * @param stamp stamp() from before the user was loaded, the user is not cached if it may have changed since
+     */
+    public void put(String token, Entity user, long stamp) {
+        String name = user.getMetaEntity().getName();
+        String uuid = user.getUuid();
+        this.loginEntities.add(name);
+        if (this.evictions.get() != stamp) {
+            return;
+        }
+
+        Map<String, Object> values = ((EntityImpl) user).snapshot();
+        this.tokens.put(token, new CachedLogin(name, uuid, values));
+        this.tokensByUser.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(uuid, k -> ConcurrentHashMap.newKeySet())
+                .add(token);
+
+        // an eviction between the put and the index missed the token, but moved the stamp on before looking
+        if (this.evictions.get() != stamp) {
+            this.tokens.invalidate(token);
+        }
+    }
+
+    private void unindex(String token, CachedLogin login) {
+        // a put of the token since the removal indexes it again
+        if (login == null || this.tokens.asMap().containsKey(token)) {
+            return;
+        }
+
+        Map<String, Set<String>> users = this.tokensByUser.get(login.entityName);
+        Set<String> userTokens = users == null ? null : users.get(login.uuid);
+        if (userTokens != null) {
+            userTokens.remove(token);
+            if (userTokens.isEmpty()) {
+                users.remove(login.uuid, userTokens);
+            }
+        }
+    }
+
+    @Override
+    public void entityChanged(MetaEntity me, String uuid) {
+        if (!this.loginEntities.contains(me.getName())) {
+            return;
+        }
+
+        this.afterCommit(() -> {
+            this.evictions.incrementAndGet();
+            Map<String, Set<String>> users = this.tokensByUser.get(me.getName());
+            Set<String> userTokens = users == null ? null : users.get(uuid);
+            if (userTokens != null) {
+                this.tokens.invalidateAll(userTokens);
+            }
+        });
+    }
+
+    @Override
+    public void entitiesChanged(MetaEntity me) {
+        if (!this.loginEntities.contains(me.getName())) {
+            return;
+        }
+
+        this.afterCommit(() -> {
+            this.evictions.incrementAndGet();
+            Map<String, Set<String>> users = this.tokensByUser.get(me.getName());
+            if (users != null) {
+                for (Set<String> userTokens : users.values()) {
+                    this.tokens.invalidateAll(userTokens);
+                }
+            }
+        });
+    }
+
+    // a reader before the commit would load the old row again and cache it for the whole TTL
+    private void afterCommit(Runnable r) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            r.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                r.run();
+            }
+        });
+    }
+
+    private static class CachedLogin {
+
+        private final String entityName;
+        private final String uuid;
+        private final Map<String, Object> values;
+
+        CachedLogin(String entityName, String uuid, Map<String, Object> values) {
+            this.entityName = entityName;
+            this.uuid = uuid;
+            this.values = values;
+        }
+    }
+
+}
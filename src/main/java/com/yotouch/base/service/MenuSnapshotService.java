@@ -0,0 +1,119 @@
+package com.yotouch.base.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.entity.EntityImpl;
+import com.yotouch.core.entity.EntityManager;
+import com.yotouch.core.entity.MetaEntity;
+import com.yotouch.core.runtime.EntityChangeListener;
+
+/**
+ * Menus of each login user, computed once by RoleService.getMenu and kept until a role, userRole, roleMenu or menu row changes.
+ * Keys carry a version bumped once a change commits, a menu list computed before that is never read back.
+ */
+@Component
+public class MenuSnapshotService implements EntityChangeListener {
+
+    private static final Set<String> WATCHED_ENTITIES = new HashSet<>(Arrays.asList("role", "userRole", "roleMenu", "menu"));
+
+    @Value("${yotouch.menu.cache.maxSize:10000}")
+    private long maxSize;
+
+    @Value("${yotouch.menu.cache.ttlSeconds:600}")
+    private long ttlSeconds;
+
+    @Autowired
+    private RoleService roleService;
+
+    @Autowired
+    private EntityManager entityMgr;
+
+    private final AtomicLong version = new AtomicLong();
+
+    // userUuid:version -> menu snapshots, sorted
+    private Cache<String, List<Map<String, Object>>> menus;
+
+    @PostConstruct
+    void init() {
+        this.menus = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return new copies of the menus of the user, callers may change them
+     */
+    public List<Entity> getMenus(Entity user) {
+        String key = user.getUuid() + ":" + this.version.get();
+
+        List<Map<String, Object>> snapshots = this.menus.getIfPresent(key);
+        if (snapshots == null) {
+            List<Entity> loaded = roleService.getMenu(roleService.getUserRoles(user));
+
+            snapshots = new ArrayList<>(loaded.size());
+            for (Entity menu : loaded) {
+                snapshots.add(((EntityImpl) menu).snapshot());
+            }
+            this.menus.put(key, snapshots);
+        }
+
+        MetaEntity me = entityMgr.getMetaEntity("menu");
+        List<Entity> result = new ArrayList<>(snapshots.size());
+        for (Map<String, Object> values : snapshots) {
+            result.add(EntityImpl.fromSnapshot(me, values));
+        }
+        return result;
+    }
+
+    public void invalidateAll() {
+        this.version.incrementAndGet();
+        this.menus.invalidateAll();
+    }
+
+    @Override
+    public void entityChanged(MetaEntity me, String uuid) {
+        this.entitiesChanged(me);
+    }
+
+    @Override
+    public void entitiesChanged(MetaEntity me) {
+        if (WATCHED_ENTITIES.contains(me.getName())) {
+            this.afterCommit(this::invalidateAll);
+        }
+    }
+
+    // a bump before the commit lets a reader cache the old rows under the new version
+    private void afterCommit(Runnable r) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            r.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                r.run();
+            }
+        });
+    }
+
+}
@@ -2,10 +2,19 @@ package com.yotouch.base.service;
 
 import java.util.Map;
 
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.helper.PaginationHelper;
+
 public interface PaginationService {
 
     Map<String, Object> getPaginationInfo(int currentPage, int total, int itemPerPage, String entityName, String queryString, Object[] queryCondition, String paginationUrl);
 
+    /**
+     * Like getPaginationInfo, counting as paginationHelper.countMode says instead of taking the total from the caller.
+     * With PAGINATION_COUNT_APPROX or PAGINATION_COUNT_NONE no COUNT(*) is run; paginationInfo also holds hasMore.
+     */
+    Map<String, Object> getPaginationInfo(PaginationHelper<Entity> paginationHelper, String entityName, String queryString, Object[] queryCondition, String paginationUrl);
+
     Map<String, Object> getPageInfo(int currentPage, int totalPage, String paginationUrl, int paginationWidth);
 
     Map<String, Integer> getInitPageInfo(int currentPage, int total, int itemPerPage);
@@ -2,6 +2,7 @@ package com.yotouch.base.service;
 
 import com.yotouch.core.Consts;
 import com.yotouch.core.entity.Entity;
+import com.yotouch.core.helper.PaginationHelper;
 import com.yotouch.core.runtime.DbSession;
 import com.yotouch.core.runtime.YotouchApplication;
 import com.yotouch.core.runtime.YotouchRuntime;
@@ -90,6 +91,22 @@ public class PaginationServiceImpl implements PaginationService {
         
         return pageInfoResult;
     }
+
+    public Map<String, Object> getPaginationInfo(PaginationHelper<Entity> paginationHelper, String entityName, String queryString, Object[] queryCondition, String paginationUrl) {
+        YotouchRuntime runtime = ytApp.getRuntime();
+        DbSession dbSession = runtime.createDbSession();
+
+        dbSession.queryRawSql(entityName, queryString, queryCondition, paginationHelper);
+
+        Map<String, Object> paginationInfo = getPageInfo(paginationHelper.getCurrentPage(), paginationHelper.getLastPage(), paginationUrl, Consts.paginationWidth);
+        paginationInfo.put("hasMore", paginationHelper.isHasMore());
+
+        Map<String, Object> pageInfoResult = new HashMap<>();
+        pageInfoResult.put("paginationInfo", paginationInfo);
+        pageInfoResult.put(entityName, paginationHelper.getItemList());
+
+        return pageInfoResult;
+    }
     
 
 }
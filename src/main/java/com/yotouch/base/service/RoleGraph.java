@@ -0,0 +1,328 @@
+package com.yotouch.base.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import com.google.common.base.Joiner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+
+import com.yotouch.core.Consts;
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.entity.MetaEntity;
+import com.yotouch.core.runtime.DbSession;
+import com.yotouch.core.runtime.EntityChangeListener;
+
+/**
+ * Role tree and user roles in memory, with the transitive closure of the tree.
+ * A changed role rebuilds the tree, a changed userRole row only reloads that row. Changes are applied on the next
+ * lookup after their transaction commits. Changes made by other nodes are picked up by a full reload every ttlSeconds.
+ */
+@Component
+public class RoleGraph implements EntityChangeListener {
+
+    private static final int UUID_BATCH_SIZE = 500;
+
+    @Value("${yotouch.role.graph.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    @Autowired
+    private DbSession dbSession;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    // the graph is shared by every thread, it is loaded in its own transaction so it only sees committed rows
+    private TransactionTemplate loadTx;
+
+    private volatile Graph graph;
+
+    // time of the last full reload
+    private volatile long loadedAt;
+
+    // set after a commit, cleared under the lock before a full reload, so a reload in flight cannot hide it
+    private volatile boolean allChanged;
+
+    private volatile boolean rolesChanged;
+
+    private final Set<String> changedUserRoles = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    void init() {
+        this.loadTx = new TransactionTemplate(txManager);
+        this.loadTx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.loadTx.setReadOnly(true);
+    }
+
+    /**
+     * @return roles below the role at any depth, without the role itself
+     */
+    public Set<String> getDescendants(String roleUuid) {
+        return this.current().descendants.getOrDefault(roleUuid, Collections.emptySet());
+    }
+
+    /**
+     * @return roles above the role up to the top, without the role itself
+     */
+    public Set<String> getAncestors(String roleUuid) {
+        return this.current().ancestors.getOrDefault(roleUuid, Collections.emptySet());
+    }
+
+    /**
+     * @return roles given to the user by userRole rows
+     */
+    public Set<String> getRoles(String userUuid) {
+        return this.current().rolesOfUser.getOrDefault(userUuid, Collections.emptySet());
+    }
+
+    public boolean hasRole(String userUuid, String roleUuid) {
+        return this.getRoles(userUuid).contains(roleUuid);
+    }
+
+    /**
+     * @return users given the role by userRole rows
+     */
+    public Set<String> getUsers(String roleUuid) {
+        return this.current().usersOfRole.getOrDefault(roleUuid, Collections.emptySet());
+    }
+
+    /**
+     * @return users of the role and of every role below it
+     */
+    public Set<String> getUsersWithDescendants(String roleUuid) {
+        Graph g = this.current();
+
+        Set<String> users = new LinkedHashSet<>(g.usersOfRole.getOrDefault(roleUuid, Collections.emptySet()));
+        for (String child : g.descendants.getOrDefault(roleUuid, Collections.emptySet())) {
+            users.addAll(g.usersOfRole.getOrDefault(child, Collections.emptySet()));
+        }
+        return users;
+    }
+
+    @Override
+    public void entityChanged(MetaEntity me, String uuid) {
+        if ("role".equals(me.getName())) {
+            this.afterCommit(() -> this.rolesChanged = true);
+        } else if ("userRole".equals(me.getName())) {
+            this.afterCommit(() -> this.changedUserRoles.add(uuid));
+        }
+    }
+
+    @Override
+    public void entitiesChanged(MetaEntity me) {
+        if ("role".equals(me.getName()) || "userRole".equals(me.getName())) {
+            this.afterCommit(() -> this.allChanged = true);
+        }
+    }
+
+    private void afterCommit(Runnable r) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            r.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                r.run();
+            }
+        });
+    }
+
+    private Graph current() {
+        Graph g = this.graph;
+        if (g != null && !this.isStale() && !this.rolesChanged && this.changedUserRoles.isEmpty()) {
+            return g;
+        }
+
+        synchronized (this) {
+            g = this.graph;
+            if (g != null && !this.isStale() && !this.rolesChanged && this.changedUserRoles.isEmpty()) {
+                return g;
+            }
+            return this.loadTx.execute(status -> this.reload(this.graph));
+        }
+    }
+
+    /**
+     * Called under the lock in loadTx. The flags are cleared before its first read, so the snapshot holds the
+     * commits that set them.
+     */
+    private Graph reload(Graph g) {
+        if (g == null || this.isStale()) {
+            this.allChanged = false;
+            this.rolesChanged = false;
+            this.changedUserRoles.clear();
+            this.loadedAt = System.currentTimeMillis();
+            g = new Graph(this.loadRoles());
+            g.addUserRoles(this.dbSession.queryRawSql("userRole", "status = ?", new Object[]{Consts.STATUS_NORMAL}));
+        } else {
+            if (this.rolesChanged) {
+                this.rolesChanged = false;
+                g = g.withRoles(this.loadRoles());
+            }
+
+            if (!this.changedUserRoles.isEmpty()) {
+                List<String> uuids = new ArrayList<>(this.changedUserRoles);
+                this.changedUserRoles.removeAll(uuids);
+                g = g.withUserRoles(uuids, this.loadUserRoles(uuids));
+            }
+        }
+
+        this.graph = g;
+        return g;
+    }
+
+    private boolean isStale() {
+        return this.allChanged || System.currentTimeMillis() - this.loadedAt > this.ttlSeconds * 1000;
+    }
+
+    private List<Entity> loadRoles() {
+        return this.dbSession.queryRawSql("role", "status = ?", new Object[]{Consts.STATUS_NORMAL});
+    }
+
+    private List<Entity> loadUserRoles(List<String> uuids) {
+        List<Entity> rows = new ArrayList<>();
+        for (int from = 0; from < uuids.size(); from += UUID_BATCH_SIZE) {
+            List<String> chunk = uuids.subList(from, Math.min(from + UUID_BATCH_SIZE, uuids.size()));
+
+            String[] qa = new String[chunk.size()];
+            Arrays.fill(qa, "?");
+
+            List<Object> args = new ArrayList<>(chunk);
+            args.add(Consts.STATUS_NORMAL);
+            rows.addAll(this.dbSession.queryRawSql("userRole", "uuid IN (" + Joiner.on(",").join(qa) + ") AND status = ?", args.toArray()));
+        }
+        return rows;
+    }
+
+    /**
+     * One version of the graph, never changed once published. Changes copy the maps they touch.
+     */
+    private static class Graph {
+
+        private final Map<String, Set<String>> ancestors = new HashMap<>();
+        private final Map<String, Set<String>> descendants = new HashMap<>();
+
+        // userRole uuid -> {user, role}
+        private final Map<String, String[]> userRoles;
+        private final Map<String, Set<String>> rolesOfUser;
+        private final Map<String, Set<String>> usersOfRole;
+
+        Graph(List<Entity> roles) {
+            this(roles, new HashMap<>(), new HashMap<>(), new HashMap<>());
+        }
+
+        private Graph(List<Entity> roles, Map<String, String[]> userRoles, Map<String, Set<String>> rolesOfUser, Map<String, Set<String>> usersOfRole) {
+            this.userRoles = userRoles;
+            this.rolesOfUser = rolesOfUser;
+            this.usersOfRole = usersOfRole;
+
+            Map<String, String> parentOf = new HashMap<>();
+            for (Entity role : roles) {
+                parentOf.put(role.getUuid(), role.v("parent"));
+            }
+
+            for (String role : parentOf.keySet()) {
+                Set<String> up = new LinkedHashSet<>();
+                String parent = parentOf.get(role);
+                // a broken tree with a cycle stops at the first role seen twice
+                while (!StringUtils.isEmpty(parent) && !parent.equals(role) && up.add(parent)) {
+                    this.descendants.computeIfAbsent(parent, k -> new HashSet<>()).add(role);
+                    parent = parentOf.get(parent);
+                }
+                this.ancestors.put(role, up);
+            }
+        }
+
+        Graph withRoles(List<Entity> roles) {
+            return new Graph(roles, this.userRoles, this.rolesOfUser, this.usersOfRole);
+        }
+
+        /**
+         * @param uuids the changed userRole rows
+         * @param rows the rows of them still in use
+         */
+        Graph withUserRoles(List<String> uuids, List<Entity> rows) {
+            Graph g = new Graph(new ArrayList<>(), new HashMap<>(this.userRoles), new HashMap<>(this.rolesOfUser), new HashMap<>(this.usersOfRole));
+            g.ancestors.putAll(this.ancestors);
+            g.descendants.putAll(this.descendants);
+
+            List<String[]> removed = new ArrayList<>();
+            for (String uuid : uuids) {
+                String[] old = g.userRoles.remove(uuid);
+                if (old != null) {
+                    removed.add(old);
+                }
+            }
+            g.addUserRoles(rows);
+
+            for (String[] old : removed) {
+                // another userRole row may give the user the same role
+                boolean kept = g.userRoles.values().stream().anyMatch(ur -> Arrays.equals(ur, old));
+                if (!kept) {
+                    remove(g.rolesOfUser, old[0], old[1]);
+                    remove(g.usersOfRole, old[1], old[0]);
+                }
+            }
+            return g;
+        }
+
+        /**
+         * Only called before the graph is published
+         */
+        void addUserRoles(List<Entity> rows) {
+            for (Entity ur : rows) {
+                String user = ur.v("user");
+                String role = ur.v("role");
+                if (StringUtils.isEmpty(user) || StringUtils.isEmpty(role)) {
+                    continue;
+                }
+
+                this.userRoles.put(ur.getUuid(), new String[]{user, role});
+                add(this.rolesOfUser, user, role);
+                add(this.usersOfRole, role, user);
+            }
+        }
+
+        // the sets may be shared with an older graph, they are replaced instead of changed
+        private static void add(Map<String, Set<String>> m, String key, String value) {
+            Set<String> s = new LinkedHashSet<>(m.getOrDefault(key, Collections.emptySet()));
+            s.add(value);
+            m.put(key, s);
+        }
+
+        private static void remove(Map<String, Set<String>> m, String key, String value) {
+            Set<String> s = m.get(key);
+            if (s == null || !s.contains(value)) {
+                return;
+            }
+
+            s = new LinkedHashSet<>(s);
+            s.remove(value);
+            if (s.isEmpty()) {
+                m.remove(key);
+            } else {
+                m.put(key, s);
+            }
+        }
+    }
+
+}
@@ -26,6 +26,9 @@ public class RoleServiceImpl implements RoleService {
     @Autowired
     private DbSession dbSession;
 
+    @Autowired
+    private RoleGraph roleGraph;
+
     public List<Entity> getUserRoles(Entity user){
 
         List<Entity> userRoles = dbSession.queryRawSql("userRole", "userUuid=? AND status=?", new Object[]{user.v("uuid"), Consts.STATUS_NORMAL});
@@ -35,26 +38,29 @@ public class RoleServiceImpl implements RoleService {
 
     public List<Entity> getMenu(List<Entity> userRoles){
 
-        List<Entity> menus = new ArrayList<Entity>();
-
-        for(Entity r:userRoles){
+        Set<String> roleUuids = new LinkedHashSet<>();
+        for (Entity r : userRoles) {
+            roleUuids.add(r.v("role"));
+        }
 
-            List<Entity> roleMenus = dbSession.queryRawSql("roleMenu", "roleUuid=? AND status=?", new Object[]{r.v("role"), Consts.STATUS_NORMAL});
+        if (roleUuids.isEmpty()) {
+            return new ArrayList<>();
+        }
 
-            if (roleMenus != null){
-                for (Entity m : roleMenus) {
-                    Entity menu = dbSession.getEntity("menu", m.v("menu"));
+        String[] qa = new String[roleUuids.size()];
+        Arrays.fill(qa, "?");
 
-                    if (menu != null) {
-                        menus.add(menu);
-                    }
+        List<Object> args = new ArrayList<>(roleUuids);
+        args.add(Consts.STATUS_NORMAL);
+        List<Entity> roleMenus = dbSession.queryRawSql("roleMenu", "roleUuid IN (" + String.join(",", qa) + ") AND status=?", args.toArray());
 
-                }
-            }
+        Set<String> menuUuids = new LinkedHashSet<>();
+        for (Entity m : roleMenus) {
+            menuUuids.add(m.v("menu"));
         }
 
-
-        menus = filterRepeatMenu(menus);
+        // queryIn keeps the order and drops repeated menus
+        List<Entity> menus = new ArrayList<>(dbSession.queryIn("menu", new ArrayList<>(menuUuids)));
         menus = sortMenu(menus);
 
         return menus;
@@ -96,15 +102,7 @@ public class RoleServiceImpl implements RoleService {
     }
 
     protected List<Entity> filterRepeatMenu(List<Entity> menus){
-        List<Entity> resultMenus = new ArrayList<Entity>(); 
-        
-        for(Entity menu : menus) {
-            if(!resultMenus.contains(menu)){
-                resultMenus.add(menu);
-            }
-        }
-        
-        return resultMenus;
+        return new ArrayList<>(new LinkedHashSet<>(menus));
     }
     
     
@@ -144,15 +142,7 @@ public class RoleServiceImpl implements RoleService {
 
     @Override
     public boolean hasRole(Entity user, Entity role) {
-        List<Entity> userRoles = this.getUserRoles(user);
-        List<Entity> roles = new ArrayList<>();
-        for (Entity userRole : userRoles) {
-            Entity tmpRole = dbSession.getEntity("role", userRole.v("role"));
-            if (tmpRole != null && !roles.contains(tmpRole)) {
-                roles.add(tmpRole);
-            }
-        }
-        return roles.contains(role);
+        return role != null && roleGraph.hasRole(user.getUuid(), role.getUuid());
     }
 
     @Override
@@ -171,14 +161,11 @@ public class RoleServiceImpl implements RoleService {
         return topRole;
     }
 
+    /**
+     * Roles below topRole at any depth
+     */
     public List<Entity> getAllChildRoles(DbSession dbSession, Entity topRole) {
-        List<Entity> roles = dbSession.queryRawSql(
-                "role",
-                "parentUuid = ? AND status = ?",
-                new Object[]{topRole.getUuid(), Consts.STATUS_NORMAL}
-        );
-
-        return roles;
+        return dbSession.queryIn("role", new ArrayList<>(roleGraph.getDescendants(topRole.getUuid())));
     }
 
     @Override
@@ -209,18 +196,12 @@ public class RoleServiceImpl implements RoleService {
 
     @Override
     public List<Entity> getUserList(DbSession dbSession, List<Entity> roles) {
-        HashSet<Entity> users = new HashSet<>();
-
-        for(Entity role : roles){
-            List<Entity> currentUserRoles = dbSession.queryRawSql("userRole", "roleUuid = ? AND status = ? order by createdAt desc ", new Object[]{role.getUuid(), Consts.STATUS_NORMAL});
-
-            for (Entity userRole : currentUserRoles) {
-                Entity user = dbSession.getEntity("user", userRole.v("user"));
-                users.add(user);
-            }
+        Set<String> userUuids = new LinkedHashSet<>();
+        for (Entity role : roles) {
+            userUuids.addAll(roleGraph.getUsers(role.getUuid()));
         }
 
-        List<Entity> resultUsers = new ArrayList<Entity>(users);
+        List<Entity> resultUsers = dbSession.queryIn("user", new ArrayList<>(userUuids));
         
         resultUsers.sort((u1, u2) -> ((String)u1.v("name")).compareTo(u2.v("name")));
         
@@ -40,6 +40,14 @@ public class UserServiceImpl implements UserService {
     @Autowired
     private WebUtil webUtil ;
 
+    @Autowired
+    private LoginTokenCache tokenCache;
+
+    @Autowired
+    private RoleGraph roleGraph;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
     @Override
     public String genPassword(Entity user, String password) {
         //// TODO: 16/5/12 从 application.yaml 中获取 
@@ -60,8 +68,6 @@ public class UserServiceImpl implements UserService {
         Map<String, String> dataMap = new HashMap<>();
         dataMap.put("uuid", user.getUuid());
         
-        ObjectMapper mapper = new ObjectMapper();
-        
         try {
             String dataStr = mapper.writeValueAsString(dataMap);
             logger.info("Token data string " + dataStr);
@@ -93,6 +99,11 @@ public class UserServiceImpl implements UserService {
         if (StringUtils.isEmpty(userToken)) {
             return null;
         }
+
+        Entity cached = this.tokenCache.get(userToken);
+        if (cached != null) {
+            return cached;
+        }
         
         // "1.user.eyJ1dWlkIjoiYjc5MDQzYzEtZTk1ZC00ZjY0LWI1ZGMtYWUyYTI1Y2M0NGY0In0=.1455088972.a4e765cd"   
 
@@ -107,12 +118,12 @@ public class UserServiceImpl implements UserService {
             if ("1".equals(formatVersion)) {
                 String infoStr = new String(Base64Utils.decodeFromString(unInfoStr));
 
-                ObjectMapper mapper = new ObjectMapper();
                 try {
                     Map<String, String> map = mapper.readValue(infoStr, new TypeReference<Map<String, String>>() {});
                     String uuid = map.get("uuid");
                     YotouchRuntime runtime = ytApp.getRuntime();
                     DbSession dbSession = runtime.createDbSession();
+                    long stamp = this.tokenCache.stamp();
                     Entity user = dbSession.getEntity(type, uuid);
 
                     if (user != null) {
@@ -122,6 +133,8 @@ public class UserServiceImpl implements UserService {
                         if (!otherVcode.equals(vcode)) {
                             return null;
                         }
+
+                        this.tokenCache.put(userToken, user, stamp);
                     }
 
                     return user;
@@ -160,13 +173,10 @@ public class UserServiceImpl implements UserService {
     public List<Entity> getUsersByRole(DbSession dbSession, Entity role, int status) {
 
         List<Entity> users = new ArrayList<Entity>();
-        List<Entity> roles = roleService.getAllChildRoles(dbSession, role);
-        roles.add(role);
-        List<Entity> userRoles = getUserRoles(dbSession, roles);
+        List<String> userUuids = new ArrayList<>(roleGraph.getUsersWithDescendants(role.getUuid()));
 
-        for (Entity userRole : userRoles) {
-            Entity user = dbSession.getEntity("user", userRole.v("user")) ;
-            if (user != null && !users.contains(user) && user.v("status").equals(status)) {
+        for (Entity user : dbSession.queryIn("user", userUuids)) {
+            if (user.v("status").equals(status)) {
                 users.add(user);
             }
         }
@@ -1,5 +1,7 @@
 package com.yotouch.base.service;
 
+import java.util.Map;
+
 import com.yotouch.core.entity.Entity;
 import com.yotouch.core.runtime.DbSession;
 
@@ -13,4 +15,16 @@ public interface WalletService {
 
     void addToCustomerWallet(DbSession dbSession, String customerUuid, int amount);
 
+    /**
+     * Credit (amount &gt; 0) or debit (amount &lt; 0) the wallet of the owner with one atomic UPDATE and append a walletLedger row
+     * @return the balance after the change
+     */
+    int addToWallet(DbSession dbSession, String ownerType, String ownerUuid, int amount, String remark);
+
+    /**
+     * addToWallet for many owners of one type, ownerUuid -&gt; amount, with JDBC batches.
+     * The ledger rows of a batch don't carry the balance.
+     */
+    void addToWallets(DbSession dbSession, String ownerType, Map<String, Integer> amounts, String remark);
+
 }
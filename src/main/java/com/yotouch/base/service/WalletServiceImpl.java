@@ -1,20 +1,47 @@
 package com.yotouch.base.service;
 
+import com.google.common.base.Joiner;
 import com.yotouch.core.Consts;
 import com.yotouch.core.entity.Entity;
 import com.yotouch.core.runtime.DbSession;
-import com.yotouch.core.runtime.YotouchApplication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import javax.annotation.PostConstruct;
 
+
+/**
+ * Wallet amounts only change through atomic SQL deltas, every change appends a walletLedger row.
+ * A unique key on (ownerType, ownerUuid) keeps one wallet per owner across transactions and nodes.
+ */
 @Service("baseWalletService")
 public class WalletServiceImpl implements WalletService {
 
+    private static final Logger logger = LoggerFactory.getLogger(WalletServiceImpl.class);
+
+    private static final int OWNER_BATCH_SIZE = 500;
+
     @Autowired
-    private YotouchApplication ytApp;
+    private DbSession dbSession;
+
+    @PostConstruct
+    void init() {
+        // at startup, the ALTER TABLE would commit a caller's open transaction
+        if (!this.dbSession.ensureUniqueKey("wallet", "uk_wallet_owner", "ownerType", "ownerUuid")) {
+            logger.error("No unique key on wallet (ownerType, ownerUuid), an owner may get two wallets");
+        }
+    }
 
     @Override
     public Entity getCustomerWallet(DbSession dbSession, String customerUuid) {
@@ -22,23 +49,34 @@ public class WalletServiceImpl implements WalletService {
     }
     
     private Entity getWallet(DbSession dbSession, String type, String uuid) {
-        synchronized (uuid) {
-            Entity wallet = dbSession.queryOneRawSql(
-                    "wallet",
-                    "ownerUuid = ? AND ownerType = ?",
-                    new Object[]{uuid, type}
-            );
-
-            if (wallet == null) {
-                wallet = dbSession.newEntity("wallet");
-                wallet.setValue("ownerType", type);
-                wallet.setValue("ownerUuid", uuid);
-                wallet.setValue("amount", 0);
-                wallet = dbSession.save(wallet);
-            }
+        Entity wallet = this.findWallet(dbSession, type, uuid);
+        if (wallet != null) {
+            return wallet;
+        }
 
+        wallet = dbSession.newEntity("wallet");
+        wallet.setValue("ownerType", type);
+        wallet.setValue("ownerUuid", uuid);
+        wallet.setValue("amount", 0);
+        if (dbSession.insertIgnore(wallet)) {
             return wallet;
         }
+
+        // another transaction created it; a locking read sees its row, a plain one would use this transaction's snapshot
+        List<Entity> wallets = dbSession.queryRawSql(
+                "wallet",
+                "ownerUuid = ? AND ownerType = ? FOR UPDATE",
+                new Object[]{uuid, type}
+        );
+        return wallets.get(0);
+    }
+
+    private Entity findWallet(DbSession dbSession, String type, String uuid) {
+        return dbSession.queryOneRawSql(
+                "wallet",
+                "ownerUuid = ? AND ownerType = ?",
+                new Object[]{uuid, type}
+        );
     }
     
     @Override
@@ -47,23 +85,103 @@ public class WalletServiceImpl implements WalletService {
     }
 
     @Override
+    @Transactional
     public void addToShopWallet(DbSession dbSession, String shopUuid, int amount) {
-        Entity wallet = this.getShopWallet(dbSession, shopUuid);
-        this.doAddWallet(dbSession, wallet, amount);
+        this.addToWallet(dbSession, Consts.WALLET_TYPE_SHOP, shopUuid, amount, null);
     }
 
     @Override
+    @Transactional
     public void addToCustomerWallet(DbSession dbSession, String customerUuid, int amount) {
-        Entity wallet = this.getCustomerWallet(dbSession, customerUuid);
-        this.doAddWallet(dbSession, wallet, amount);
-        
+        this.addToWallet(dbSession, Consts.WALLET_TYPE_CUSTOMER, customerUuid, amount, null);
     }
-    
-    private synchronized void doAddWallet(DbSession dbSession, Entity wallet, int newAmount) {
-        int amount = wallet.v("amount");
-        wallet.setValue("amount", amount + newAmount);
-        wallet.setValue("lastChangedAt", new Date());
-        dbSession.save(wallet);
+
+    @Override
+    @Transactional
+    public int addToWallet(DbSession dbSession, String ownerType, String ownerUuid, int amount, String remark) {
+        Entity wallet = this.getWallet(dbSession, ownerType, ownerUuid);
+
+        Number balance = dbSession.increase("wallet", wallet.getUuid(), "amount", amount, this.touched());
+
+        Entity ledger = this.newLedger(dbSession, wallet.getUuid(), ownerType, ownerUuid, amount, remark);
+        ledger.setValue("balance", balance.intValue());
+        dbSession.save(ledger);
+
+        return balance.intValue();
+    }
+
+    @Override
+    @Transactional
+    public void addToWallets(DbSession dbSession, String ownerType, Map<String, Integer> amounts, String remark) {
+        if (amounts.isEmpty()) {
+            return;
+        }
+
+        Map<String, Entity> wallets = this.getWallets(dbSession, ownerType, new ArrayList<>(amounts.keySet()));
+
+        // wallet uuid -> amount
+        Map<String, Integer> deltas = new LinkedHashMap<>();
+        List<Entity> ledgers = new ArrayList<>(amounts.size());
+        for (Map.Entry<String, Integer> entry : amounts.entrySet()) {
+            Entity wallet = wallets.get(entry.getKey());
+            deltas.merge(wallet.getUuid(), entry.getValue(), Integer::sum);
+            ledgers.add(this.newLedger(dbSession, wallet.getUuid(), ownerType, entry.getKey(), entry.getValue(), remark));
+        }
+
+        dbSession.increaseAll("wallet", "amount", deltas, this.touched());
+        dbSession.saveAll(ledgers);
+    }
+
+    /**
+     * Wallets of the owners by owner uuid, one IN query per chunk, missing wallets are created
+     */
+    private Map<String, Entity> getWallets(DbSession dbSession, String type, List<String> ownerUuids) {
+        Map<String, Entity> wallets = new HashMap<>();
+        for (int from = 0; from < ownerUuids.size(); from += OWNER_BATCH_SIZE) {
+            List<String> chunk = ownerUuids.subList(from, Math.min(from + OWNER_BATCH_SIZE, ownerUuids.size()));
+
+            List<Object> args = new ArrayList<>(chunk.size() + 1);
+            args.add(type);
+            args.addAll(chunk);
+            List<Entity> found = dbSession.queryRawSql(
+                    "wallet",
+                    "ownerType = ? AND ownerUuid IN (" + placeholders(chunk.size()) + ")",
+                    args.toArray()
+            );
+            for (Entity wallet : found) {
+                wallets.put(wallet.v("ownerUuid"), wallet);
+            }
+        }
+
+        for (String ownerUuid : ownerUuids) {
+            if (!wallets.containsKey(ownerUuid)) {
+                wallets.put(ownerUuid, this.getWallet(dbSession, type, ownerUuid));
+            }
+        }
+        return wallets;
+    }
+
+    // written by the same UPDATE as the amount
+    private Map<String, Object> touched() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("lastChangedAt", new Date());
+        return m;
+    }
+
+    private Entity newLedger(DbSession dbSession, String walletUuid, String ownerType, String ownerUuid, int amount, String remark) {
+        Entity ledger = dbSession.newEntity("walletLedger");
+        ledger.setValue("walletUuid", walletUuid);
+        ledger.setValue("ownerType", ownerType);
+        ledger.setValue("ownerUuid", ownerUuid);
+        ledger.setValue("amount", amount);
+        ledger.setValue("remark", remark);
+        return ledger;
+    }
+
+    private static String placeholders(int n) {
+        String[] qa = new String[n];
+        Arrays.fill(qa, "?");
+        return Joiner.on(",").join(qa);
     }
 
 }
@@ -41,8 +41,15 @@ public abstract class BaseController {
         return dbSession;
     }
 
+    /**
+     * The session of the request, made by the interceptors, carrying the login user of the request
+     */
     protected DbSession getDbSession(HttpServletRequest request) {
-        DbSession dbSession = this.getDbSession();
+        DbSession dbSession = (DbSession) request.getAttribute("dbSession");
+        if (dbSession == null) {
+            dbSession = ytApp.getRuntime().createDbSession();
+            request.setAttribute("dbSession", dbSession);
+        }
 
         Entity loginUser = (Entity) request.getAttribute(Consts.RUNTIME_VARIABLE_USER);
         dbSession.setLoginUser(loginUser);
@@ -1,7 +1,7 @@
 package com.yotouch.base.web.interceptor;
 
 import com.yotouch.base.service.MenuPermissionChecker;
-import com.yotouch.base.service.RoleService;
+import com.yotouch.base.service.MenuSnapshotService;
 import com.yotouch.core.Consts;
 import com.yotouch.core.entity.Entity;
 import com.yotouch.core.runtime.DbSession;
@@ -25,7 +25,7 @@ public class AuthorizeInterceptor implements HandlerInterceptor {
     private DbSession dbSession;
     
     @Autowired
-    private RoleService roleService;
+    private MenuSnapshotService menuSnapshotService;
     
     @Autowired(required = false)
     private MenuPermissionChecker menuPermissionChecker;
@@ -39,8 +39,7 @@ public class AuthorizeInterceptor implements HandlerInterceptor {
         Entity loginUser = (Entity) request.getAttribute(Consts.RUNTIME_VARIABLE_USER);
 
         if (loginUser != null) {
-            List<Entity> userRoles = roleService.getUserRoles(loginUser);
-            List<Entity> menus = roleService.getMenu(userRoles);
+            List<Entity> menus = menuSnapshotService.getMenus(loginUser);
             
             if (menuPermissionChecker != null) {
                 menus = menuPermissionChecker.check(request, dbSession, loginUser, menus);
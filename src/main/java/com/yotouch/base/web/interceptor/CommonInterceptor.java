@@ -1,5 +1,6 @@
 package com.yotouch.base.web.interceptor;
 
+import com.yotouch.core.runtime.DbSession;
 import com.yotouch.core.runtime.YotouchApplication;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -19,7 +20,10 @@ public class CommonInterceptor implements HandlerInterceptor {
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
             throws Exception {
 
-        request.setAttribute("dbSession", ytApp.getRuntime().createDbSession());
+        DbSession dbSession = ytApp.getRuntime().createDbSession();
+        dbSession.beginUnitOfWork();
+
+        request.setAttribute("dbSession", dbSession);
         request.setAttribute("entityMgr", ytApp.getEntityManager());
         request.setAttribute("request", request);
         return true;
@@ -31,7 +35,12 @@ public class CommonInterceptor implements HandlerInterceptor {
 
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
-
+        DbSession dbSession = (DbSession) request.getAttribute("dbSession");
+        if (dbSession != null) {
+            dbSession.endUnitOfWork();
+            // also done by LoginInterceptor, but this one always completes
+            dbSession.unbindLoginUser();
+        }
     }
 
 
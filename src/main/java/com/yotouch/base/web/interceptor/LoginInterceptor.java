@@ -17,6 +17,7 @@ import org.springframework.web.servlet.ModelAndView;
 
 import com.yotouch.base.service.UserService;
 import com.yotouch.core.entity.Entity;
+import com.yotouch.core.runtime.DbSession;
 import com.yotouch.core.runtime.YotouchApplication;
 
 import java.io.IOException;
@@ -39,6 +40,9 @@ public abstract class LoginInterceptor implements HandlerInterceptor {
     @Autowired
     private WebUtil webUtil ;
 
+    @Autowired
+    private DbSession dbSession;
+
     public LoginInterceptor() {
         this(new ArrayList<>());
     }
@@ -93,7 +97,15 @@ public abstract class LoginInterceptor implements HandlerInterceptor {
         }
 
         if (isLogin) {
-            return this.loginSuccess(request, response, handler);
+            boolean goOn = this.loginSuccess(request, response, handler);
+
+            // services using the shared DbSession stamp creatorId/updaterId from the thread, unbound in afterCompletion,
+            // which only runs when preHandle returned true
+            Entity user = (Entity) request.getAttribute(Consts.RUNTIME_VARIABLE_USER);
+            if (goOn && user != null) {
+                dbSession.bindLoginUser(user);
+            }
+            return goOn;
         } else {
             return this.loginFailed(request, response, handler);
         }
@@ -130,7 +142,7 @@ public abstract class LoginInterceptor implements HandlerInterceptor {
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex)
             throws Exception {
-
+        dbSession.unbindLoginUser();
     }
 
 }
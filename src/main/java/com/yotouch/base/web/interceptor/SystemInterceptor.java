@@ -37,7 +37,9 @@ public class SystemInterceptor extends LoginInterceptor{
         
         request.setAttribute(Consts.RUNTIME_VARIABLE_WX_APPID, wechatAppId);
         
-        request.setAttribute("dbSession", ytApp.getRuntime().createDbSession());
+        if (request.getAttribute("dbSession") == null) {
+            request.setAttribute("dbSession", ytApp.getRuntime().createDbSession());
+        }
         request.setAttribute("entityMgr", ytApp.getEntityManager());
         request.setAttribute("entityManager", ytApp.getEntityManager());
         request.setAttribute("request", request);
@@ -41,6 +41,10 @@ public interface Consts {
     String META_FIELD_TYPE_SINGLE_REFERENCE = "SINGLE_REFERENCE";
     String META_FIELD_TYPE_MULTI_REFERENCE  = "MULTI_REFERENCE";
     
+    String ENTITY_CACHE_OFF                 = "off";
+    String ENTITY_CACHE_LOCAL               = "local";
+    String ENTITY_CACHE_REDIS               = "redis";
+    
     int STATUS_NORMAL                       = 1000;
     int STATUS_DELETED                      = 1001;
     int STATUS_LOCKING                      = 1004;
@@ -105,6 +109,10 @@ public interface Consts {
     int paginationWidth                     = 5;
     int itemPerPage                         = 20;
 
+    String PAGINATION_COUNT_EXACT           = "exact";   // SELECT COUNT(*)
+    String PAGINATION_COUNT_APPROX          = "approx";  // optimizer estimate from EXPLAIN
+    String PAGINATION_COUNT_NONE            = "none";    // only whether there is a next page
+
 
     int REFUND_TYPE_ORDER  = 5510;
     int REFUND_TYPE_ITEMS  = 5520;
@@ -1,9 +1,13 @@
 package com.yotouch.core.entity;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -14,11 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 
 import com.yotouch.core.entity.fv.FieldValue;
 import com.yotouch.core.entity.mf.MultiReferenceMetaFieldImpl;
@@ -36,18 +36,41 @@ public class EntityImpl implements Entity {
     static final private Logger logger = LoggerFactory.getLogger(EntityImpl.class);
     
     private MetaEntity me;
-    
-    private Map<String, FieldValue<?>> valueMap;
+
+    private MetaEntityImpl mei;
+
+    // values by MetaEntityImpl slot, INT/LONG live in longs and DOUBLE in doubles when the primitive bit is set
+    private Object[] values;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] oldValues;
+
+    private final BitSet present = new BitSet();
+    private final BitSet changed = new BitSet();
+    private final BitSet primitive = new BitSet();
+
+    // values of fields unknown to the MetaEntity, such as function fields of a Query
+    private Map<String, FieldValue<?>> freeValues;
     
     private Map<String, Entity> srMap;
+
+    // uuid a new entity will be inserted with, picked when its identity is first needed so hashCode survives the save
+    private String reservedUuid;
     
     public EntityImpl(MetaEntity me) {
         this.me = me;
-        this.valueMap = new HashMap<>();
+        this.mei = (MetaEntityImpl) me;
+
+        MetaField<?>[] fields = this.mei.getSlotFields();
+        this.values = new Object[fields.length];
 
-        me.getMetaFields().stream()
-                .filter(mf -> mf.getDefaultFieldValue() != null && !StringUtils.isEmpty(mf.getDefaultFieldValue().getValue())) //由于StringFieldValue默认为"" 所以用isEmpty
-                .forEach(mf -> this.valueMap.put(mf.getName(), mf.getDefaultFieldValue()));
+        for (int slot = 0; slot < fields.length; slot++) {
+            FieldValue<?> dv = fields[slot].getDefaultFieldValue();
+            if (dv != null && !StringUtils.isEmpty(dv.getValue())) { //由于StringFieldValue默认为"" 所以用isEmpty
+                this.store(slot, dv.getValue());
+                this.changed.set(slot, dv.isChanged());
+            }
+        }
 
         this.srMap = new HashMap<>();
     }
@@ -70,29 +93,253 @@ public class EntityImpl implements Entity {
             logger.debug("Set none-existing field `"+fieldName+"` for metaEntity `"+this.me.getName()+"`");
             mf = new ObjectMetaFieldImpl(this.me, fieldName, fieldName);
         }
-        
-        FieldValue<?> fv = this.valueMap.get(mf.getName());
 
+        int slot = this.mei.slotOf(mf.getName());
+        if (slot < 0) {
+            this.setFreeValue(mf, value);
+            return this;
+        }
+
+        // parse with the FieldValue of the field, so conversions and change rules stay the same
+        FieldValue<?> parsed = mf.newFieldValue(value);
+        Object v = parsed.getValue();
+
+        if (!this.present.get(slot)) {
+            this.store(slot, v);
+            this.changed.set(slot, parsed.isChanged());
+            return this;
+        }
+
+        Object current = this.slotValue(slot);
+        if (!this.changed.get(slot) && !parsed.isChanged() && Objects.equal(v, current)) {
+            return this;
+        }
+
+        this.setOldValue(slot, current);
+        this.store(slot, v);
+        this.changed.set(slot);
+
+        return this;
+    }
+
+    private void setFreeValue(MetaField<?> mf, Object value) {
+        if (this.freeValues == null) {
+            this.freeValues = new HashMap<>();
+        }
+
+        FieldValue<?> fv = this.freeValues.get(mf.getName());
         if (fv == null) {
             fv = mf.newFieldValue(value);
         } else {
             fv.setNewValue(value);
         }
-        
-        this.valueMap.put(mf.getName(), fv);
+        this.freeValues.put(mf.getName(), fv);
+    }
 
-        return this;
+    // Forget all values, so the entity can be read again from the next row of a stream
+    void clearForReuse() {
+        Arrays.fill(this.values, null);
+        this.present.clear();
+        this.changed.clear();
+        this.primitive.clear();
+        this.oldValues = null;
+        this.freeValues = null;
+        this.srMap.clear();
+        this.reservedUuid = null;
+    }
+
+    // Value read from storage, replaces whatever the entity holds
+    void loadValue(MetaField<?> mf, Object value) {
+        int slot = this.mei.slotOf(mf.getName());
+        if (slot < 0) {
+            if (this.freeValues == null) {
+                this.freeValues = new HashMap<>();
+            }
+            this.freeValues.put(mf.getName(), mf.newFieldValue(value));
+            return;
+        }
+
+        FieldValue<?> parsed = mf.newFieldValue(value);
+        this.store(slot, parsed.getValue());
+        this.changed.set(slot, parsed.isChanged());
+        this.setOldValue(slot, null);
+    }
+
+    private void store(int slot, Object v) {
+        this.ensureCapacity(slot);
+
+        byte kind = this.mei.getSlotKinds()[slot];
+        if (v == null || kind == MetaEntityImpl.SLOT_OBJECT) {
+            this.values[slot] = v;
+            this.primitive.clear(slot);
+        } else if (kind == MetaEntityImpl.SLOT_DOUBLE) {
+            if (this.doubles == null) {
+                this.doubles = new double[this.values.length];
+            }
+            this.doubles[slot] = ((Number) v).doubleValue();
+            this.values[slot] = null;
+            this.primitive.set(slot);
+        } else {
+            if (this.longs == null) {
+                this.longs = new long[this.values.length];
+            }
+            this.longs[slot] = ((Number) v).longValue();
+            this.values[slot] = null;
+            this.primitive.set(slot);
+        }
+        this.present.set(slot);
+    }
+
+    private Object slotValue(int slot) {
+        if (!this.primitive.get(slot)) {
+            return this.values[slot];
+        }
+
+        byte kind = this.mei.getSlotKinds()[slot];
+        if (kind == MetaEntityImpl.SLOT_INT) {
+            return (int) this.longs[slot];
+        } else if (kind == MetaEntityImpl.SLOT_LONG) {
+            return this.longs[slot];
+        } else {
+            return this.doubles[slot];
+        }
+    }
+
+    private void setOldValue(int slot, Object old) {
+        if (this.oldValues == null) {
+            if (old == null) {
+                return;
+            }
+            this.oldValues = new Object[this.values.length];
+        }
+        this.oldValues[slot] = old;
+    }
+
+    // fields added to the MetaEntity after this entity was built
+    private void ensureCapacity(int slot) {
+        if (slot < this.values.length) {
+            return;
+        }
+
+        int n = Math.max(slot + 1, this.mei.getSlotFields().length);
+        this.values = Arrays.copyOf(this.values, n);
+        if (this.longs != null) {
+            this.longs = Arrays.copyOf(this.longs, n);
+        }
+        if (this.doubles != null) {
+            this.doubles = Arrays.copyOf(this.doubles, n);
+        }
+        if (this.oldValues != null) {
+            this.oldValues = Arrays.copyOf(this.oldValues, n);
+        }
+    }
+
+    private MetaField<?> slotField(int slot) {
+        return this.mei.getSlotFields()[slot];
+    }
+
+    private boolean isPresent(String fieldName) {
+        int slot = this.mei.slotOf(fieldName);
+        if (slot >= 0) {
+            return this.present.get(slot);
+        }
+        return this.freeValues != null && this.freeValues.containsKey(fieldName);
+    }
+
+    /**
+     * The entity has been written as it is, its values become the stored ones and nothing is changed anymore
+     */
+    public void markPersisted() {
+        for (int slot = this.present.nextSetBit(0); slot >= 0; slot = this.present.nextSetBit(slot + 1)) {
+            this.loadValue(this.slotField(slot), this.slotValue(slot));
+        }
+
+        if (this.freeValues != null) {
+            for (FieldValue<?> fv : new ArrayList<>(this.freeValues.values())) {
+                this.loadValue(fv.getField(), fv.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return true if the entity holds a value for every column, so the stored row is fully known
+     */
+    public boolean holdsAllColumns() {
+        for (MetaField<?> mf : this.mei.getStatementTemplate().getColumnFields()) {
+            if (!this.isPresent(mf.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A new entity with the values as they are stored after a save, null values get the defaults the binders and the table apply
+     */
+    public EntityImpl copyAsStored(String uuid) {
+        EntityImpl copy = new EntityImpl(this.me);
+
+        for (MetaField<?> mf : this.mei.getStatementTemplate().getColumnFields()) {
+            boolean held = this.isPresent(mf.getName());
+            Object v = held ? this.getValue(mf.getName()) : null;
+            if ("uuid".equals(mf.getName())) {
+                v = uuid;
+            } else if (v == null && Consts.META_FIELD_DATA_TYPE_UUID.equalsIgnoreCase(mf.getDataType())) {
+                v = "";
+            } else if (v == null && held && Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(mf.getDataType())) {
+                v = mf.getDefaultValue(); // same as the DATETIME binder
+            }
+            copy.loadValue(mf, v);
+        }
+
+        for (int slot = this.present.nextSetBit(0); slot >= 0; slot = this.present.nextSetBit(slot + 1)) {
+            MetaField<?> mf = this.slotField(slot);
+            if (mf.isMultiReference()) {
+                copy.loadValue(mf, this.slotValue(slot));
+            }
+        }
+
+        return copy;
+    }
+
+    /**
+     * Values of the meta fields as plain objects, DATETIME as epoch millis. Used by the second level entity cache
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new HashMap<>();
+        for (int slot = this.present.nextSetBit(0); slot >= 0; slot = this.present.nextSetBit(slot + 1)) {
+            Object v = this.slotValue(slot);
+            if (v instanceof Calendar) {
+                v = ((Calendar) v).getTimeInMillis();
+            }
+            m.put(this.slotField(slot).getName(), v);
+        }
+        return m;
+    }
+
+    /**
+     * A loaded entity rebuilt from snapshot(), no field is marked as changed by the user
+     */
+    public static EntityImpl fromSnapshot(MetaEntity me, Map<String, Object> values) {
+        EntityImpl e = new EntityImpl(me);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            MetaField<?> mf = me.getMetaField(entry.getKey());
+            if (mf != null) {
+                e.loadValue(mf, entry.getValue());
+            }
+        }
+        return e;
     }
 
     @Override
     public <T> T getValue(DbSession dbSession, String field) {
-        String[] fieldParts = field.split("\\.");
-        if (fieldParts.length == 1) {
+        int dot = field.indexOf('.');
+        if (dot < 0) {
             return this.v(field);
         }
         
         
-        String refName = fieldParts[0];
+        String refName = field.substring(0, dot);
         MetaField mf = this.getMetaEntity().getMetaField(refName);
         if (!mf.isSingleReference()) {
             throw new MetaFieldIsNotSingleReference(this.me, mf);
@@ -103,8 +350,7 @@ public class EntityImpl implements Entity {
             return null;
         }
         
-        field = field.substring(field.indexOf('.') + 1);
-        return refEntity.v(dbSession, field);
+        return refEntity.v(dbSession, field.substring(dot + 1));
         
     }
     
@@ -116,13 +362,30 @@ public class EntityImpl implements Entity {
     @Override
     public <T> T getValue(String fieldName) throws NoSuchMetaFieldException {
         
+        int slot = this.mei.slotOf(fieldName);
+        if (slot >= 0) {
+            if (!this.present.get(slot)) {
+                return null;
+            }
+
+            Object v = this.slotValue(slot);
+            // multi reference uuids, a caller changing the list must not change the entity behind setValue's back
+            if (v instanceof List) {
+                v = new ArrayList<>((List<?>) v);
+            }
+
+            @SuppressWarnings("unchecked")
+            T t = (T) v;
+            return t;
+        }
+
         MetaField<?> mf = this.me.getMetaField(fieldName);
-        if (mf == null && !this.valueMap.containsKey(fieldName)) {
+        if (mf == null && !this.isPresent(fieldName)) {
             throw new NoSuchMetaFieldException(this.me, fieldName);
         }
         
         @SuppressWarnings("unchecked")
-        FieldValue<T> fv = (FieldValue<T>) this.valueMap.get(fieldName);
+        FieldValue<T> fv = this.freeValues == null ? null : (FieldValue<T>) this.freeValues.get(fieldName);
         if (fv != null) {
             return fv.getValue();
         }
@@ -136,18 +399,93 @@ public class EntityImpl implements Entity {
     }
 
     
+    /**
+     * FieldValue views of the held values, for DbStore
+     */
     public List<FieldValue<?>> getFieldValueList() {
-        return new ArrayList<>(this.valueMap.values());
+        List<FieldValue<?>> l = new ArrayList<>(this.present.cardinality());
+        for (int slot = this.present.nextSetBit(0); slot >= 0; slot = this.present.nextSetBit(slot + 1)) {
+            l.add(new SlotFieldValue(slot));
+        }
+        if (this.freeValues != null) {
+            l.addAll(this.freeValues.values());
+        }
+        return l;
+    }
+
+    private class SlotFieldValue implements FieldValue<Object> {
+
+        private final int slot;
+
+        SlotFieldValue(int slot) {
+            this.slot = slot;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public MetaField<Object> getField() {
+            return (MetaField<Object>) slotField(slot);
+        }
+
+        @Override
+        public Object getValue() {
+            return slotValue(slot);
+        }
+
+        @Override
+        public boolean isChanged() {
+            return changed.get(slot);
+        }
+
+        @Override
+        public void setChanged(boolean c) {
+            changed.set(slot, c);
+        }
+
+        @Override
+        public Object getOldValue() {
+            if (!changed.get(slot) || oldValues == null) {
+                return null;
+            }
+            return oldValues[slot];
+        }
+
+        @Override
+        public void setNewValue(Object value) {
+            setValue(slotField(slot).getName(), value);
+        }
+
+        @Override
+        public String toString() {
+            return "SlotFieldValue [" + slotField(slot).getName() + "=" + getValue() + ", changed=" + isChanged() + "]";
+        }
     }
 
+    /**
+     * Uuid of the row this entity is or will be: the saved uuid, a given "-uuid" without the minus,
+     * or for a new entity without one, a uuid reserved here which DbSession inserts it with
+     */
+    public String reserveUuid() {
+        String uuid = getUuid();
+        if (!StringUtils.isEmpty(uuid)) {
+            return uuid.startsWith("-") ? uuid.substring(1) : uuid;
+        }
+
+        synchronized (this) {
+            if (this.reservedUuid == null) {
+                this.reservedUuid = UUID.randomUUID().toString();
+            }
+            return this.reservedUuid;
+        }
+    }
+
+    /**
+     * Stable across save. A new entity without a uuid reserves one on the first call, which locks the entity
+     * and generates a random UUID once. Apart from that, and the substring of a given "-uuid", it allocates nothing.
+     */
     @Override
     public int hashCode() {
-        HashFunction hf = Hashing.md5();
-        HashCode hc = hf.newHasher()
-                .putString(this.me.getName(), Charsets.UTF_8)
-                .putString(getUuid() == null ? "" : getUuid(), Charsets.UTF_8)
-                .hash();
-        return hc.hashCode();
+        return 31 * this.me.getName().hashCode() + this.reserveUuid().hashCode();
     }
 
     @Override
@@ -166,7 +504,7 @@ public class EntityImpl implements Entity {
         } else {
             
             if (Objects.equal(me.getName(), other.me.getName())) {
-                return Objects.equal(this.getUuid(), other.getUuid());
+                return this.reserveUuid().equals(other.reserveUuid());
             } else {
                 return false;
             }            
@@ -175,7 +513,12 @@ public class EntityImpl implements Entity {
 
     @Override
     public boolean isFieldChanged(String fieldName) {
-        FieldValue<?> fv = this.valueMap.get(fieldName);
+        int slot = this.mei.slotOf(fieldName);
+        if (slot >= 0) {
+            return this.present.get(slot) && this.changed.get(slot);
+        }
+
+        FieldValue<?> fv = this.freeValues == null ? null : this.freeValues.get(fieldName);
         if (fv == null) {
             return false;
         } else {
@@ -190,8 +533,15 @@ public class EntityImpl implements Entity {
             return null;
         }
 
+        int slot = this.mei.slotOf(fieldName);
+        if (slot >= 0) {
+            @SuppressWarnings("unchecked")
+            T old = this.oldValues == null ? null : (T) this.oldValues[slot];
+            return old;
+        }
+
         @SuppressWarnings("unchecked")
-        FieldValue<T> fv = (FieldValue<T>) this.valueMap.get(fieldName);
+        FieldValue<T> fv = (FieldValue<T>) this.freeValues.get(fieldName);
         if (fv == null) {
             return null;
         } else {
@@ -214,8 +564,16 @@ public class EntityImpl implements Entity {
 
     @Override
     public Map<String, Object> extraValueMap(DbSession dbSession) {
+        List<String> names = new ArrayList<>();
+        for (int slot = this.present.nextSetBit(0); slot >= 0; slot = this.present.nextSetBit(slot + 1)) {
+            names.add(this.slotField(slot).getName());
+        }
+        if (this.freeValues != null) {
+            names.addAll(this.freeValues.keySet());
+        }
+
         Map<String, Object> m = new HashMap<>();
-        for (String fn: this.valueMap.keySet()) {
+        for (String fn: names) {
             MetaField mf = this.getMetaEntity().getMetaField(fn);
             if (mf == null) {
                 m.put(fn, this.v(fn));
@@ -375,6 +733,25 @@ public class EntityImpl implements Entity {
         return refEntity;
     }
 
+    /**
+     * Set a value as read from the database, the field isn't marked as changed. Used by DbSession.increase
+     */
+    public void putStoredValue(String fieldName, Object value) {
+        MetaField<?> mf = this.me.getMetaField(fieldName);
+        if (mf == null) {
+            throw new NoSuchMetaFieldException(this.me, fieldName);
+        }
+        this.loadValue(mf, value);
+    }
+
+    /**
+     * Put an already loaded referenced entity into the single reference cache, used by DbSession.prefetch
+     */
+    public void putSingleReference(Entity refEntity) {
+        String key = refEntity.getMetaEntity().getName() + ":" + refEntity.getUuid();
+        this.srMap.put(key, refEntity);
+    }
+
     @Override
     public boolean isNew() {
         String uuid = this.getUuid();
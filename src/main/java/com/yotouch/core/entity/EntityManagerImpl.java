@@ -24,9 +24,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Service
 public class EntityManagerImpl implements EntityManager {
@@ -42,8 +45,17 @@ public class EntityManagerImpl implements EntityManager {
     @Value("${mysql.lowerCaseTableNames:}")
     private String lowerCaseTableNames;
 
+    // entities being built by init, only read by the building thread
     private Map<String, MetaEntityImpl> userEntities;
     private Map<String, MetaEntityImpl> mfEntities;
+    private volatile Thread builder;
+
+    // what every other thread reads, swapped in once init is finished
+    private final AtomicReference<MetaSnapshot> snapshot = new AtomicReference<>();
+
+    // entity name -> definitions of fields other managers add, such as the workflow fields of biz entities.
+    // Applied by every build, so a reload keeps them; only changed under the lock
+    private final Map<String, List<Map<String, Object>>> extraFields = new LinkedHashMap<>();
 
     private Map<String, MetaFieldImpl<?>> systemFields;
     private Map<String, List<String>>     systemValueOptions;
@@ -61,7 +73,16 @@ public class EntityManagerImpl implements EntityManager {
     }
 
     @PostConstruct
-    private void initMetaEntities() {
+    private synchronized void initMetaEntities() {
+        this.builder = Thread.currentThread();
+        try {
+            buildMetaEntities();
+        } finally {
+            this.builder = null;
+        }
+    }
+
+    private void buildMetaEntities() {
         this.userEntities = new HashMap<>();
         this.mfEntities = new HashMap<>();
 
@@ -77,10 +98,16 @@ public class EntityManagerImpl implements EntityManager {
 
         loadDbMetaEntities();
         loadDbMetaFields();
+
+        for (MetaEntityImpl mei : this.userEntities.values()) {
+            addExtraFields(mei, this.extraFields.get(mei.getName()));
+        }
         
         buildMultiReferenceEntities();
 
-        rebuildDb();
+        rebuildDb(this.userEntities, this.mfEntities);
+
+        this.snapshot.set(new MetaSnapshot(this.userEntities, this.mfEntities));
     }
 
     private void buildMultiReferenceEntities() {
@@ -152,14 +179,19 @@ public class EntityManagerImpl implements EntityManager {
 
     // CREATE OR ALTER TABLE
     public void rebuildDb() {
+        MetaSnapshot s = this.snapshot.get();
+        rebuildDb(s.userEntities, s.mfEntities);
+    }
+
+    private void rebuildDb(Map<String, MetaEntityImpl> userEntities, Map<String, MetaEntityImpl> mfEntities) {
 
 
         List<String> tables = dbStore.fetchAllTables(this.isLowerCase());
 
         logger.info("Tables " + tables);
 
-        scanExistingDbTable(tables, this.userEntities);
-        scanExistingDbTable(tables, this.mfEntities);
+        scanExistingDbTable(tables, userEntities);
+        scanExistingDbTable(tables, mfEntities);
     }
 
     private void scanExistingDbTable(List<String> tables, Map<String, MetaEntityImpl> entities) {
@@ -293,6 +325,13 @@ public class EntityManagerImpl implements EntityManager {
                 mei = new MetaEntityImpl(uuid, en, displayName, prefix, scope, this.isLowerCase());
             }
 
+            if (emap.containsKey("cache")) {
+                mei.setCacheMode((String) emap.get("cache"));
+            }
+            if (emap.containsKey("reloadOnSave")) {
+                mei.setReloadOnSave(Boolean.TRUE.equals(emap.get("reloadOnSave")));
+            }
+
 
             Map<String, Object> fields = (Map<String, Object>) emap.get("fields");
             buildEntityFields(uuid, mei, fields);
@@ -626,13 +665,29 @@ public class EntityManagerImpl implements EntityManager {
 
     @Override
     public List<MetaEntity> getMetaEntities() {
-        List<MetaEntity> l = new ArrayList<>(userEntities.values());
+        List<MetaEntity> l = new ArrayList<>(this.snapshot.get().userEntities.values());
 //        l.addAll(this.userEntities.values());
         return l;
     }
 
     @Override
     public MetaEntity getMetaEntity(String name) {
+        MetaSnapshot s = this.snapshot.get();
+        if (s != null && this.builder != Thread.currentThread()) {
+            MetaEntity me = s.get(name);
+            if (me == null) {
+                throw new NoSuchMetaEntityException(name);
+            }
+            return me;
+        }
+
+        return this.scanMetaEntity(name);
+    }
+
+    /**
+     * Lookup for the thread building the entities, same precedence as MetaSnapshot
+     */
+    private MetaEntity scanMetaEntity(String name) {
         MetaEntity me = this.userEntities.get(name);
 
         if (me == null) {
@@ -652,7 +707,117 @@ public class EntityManagerImpl implements EntityManager {
         return me;
     }
 
-    public void reload() {        
+    /**
+     * Published user and multi reference mapping entities with their name and uuid index, never changed once built.
+     * A user entity uuid wins over a name, a user entity name over a mapping entity.
+     */
+    private static class MetaSnapshot {
+
+        private final Map<String, MetaEntityImpl> userEntities;
+        private final Map<String, MetaEntityImpl> mfEntities;
+
+        private final Map<String, MetaEntity> byUuid = new HashMap<>();
+        private final Map<String, MetaEntity> byName = new HashMap<>();
+
+        MetaSnapshot(Map<String, MetaEntityImpl> userEntities, Map<String, MetaEntityImpl> mfEntities) {
+            this.userEntities = Collections.unmodifiableMap(userEntities);
+            this.mfEntities = Collections.unmodifiableMap(mfEntities);
+
+            for (MetaEntity me : userEntities.values()) {
+                this.byUuid.putIfAbsent(me.getUuid(), me);
+                this.byName.put(me.getName(), me);
+            }
+            for (MetaEntity me : mfEntities.values()) {
+                this.byName.putIfAbsent(me.getName(), me);
+            }
+        }
+
+        MetaEntity get(String name) {
+            MetaEntity me = this.byUuid.get(name);
+            if (me == null) {
+                me = this.byName.get(name);
+            }
+            return me;
+        }
+    }
+
+    /**
+     * Add fields to published entities. Changed entities are published as copies in a new snapshot, readers never see
+     * an entity change; the definitions are kept and applied again by reload.
+     * @param fields entity name -> field definitions as in the entities yaml, with the name in "name"
+     */
+    public synchronized void addExtraFields(Map<String, List<Map<String, Object>>> fields) {
+        MetaSnapshot s = this.snapshot.get();
+        Map<String, MetaEntityImpl> userEntities = new HashMap<>(s.userEntities);
+        Map<String, MetaEntityImpl> changed = new HashMap<>();
+
+        for (Map.Entry<String, List<Map<String, Object>>> entry : fields.entrySet()) {
+            List<Map<String, Object>> defs = this.extraFields.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+            for (Map<String, Object> def : entry.getValue()) {
+                if (!hasField(defs, (String) def.get("name"))) {
+                    defs.add(new HashMap<>(def));
+                }
+            }
+
+            MetaEntityImpl mei = userEntities.get(entry.getKey());
+            if (mei == null || !lacksField(mei, defs)) {
+                continue;
+            }
+
+            MetaEntityImpl copy = mei.copy();
+            addExtraFields(copy, defs);
+            userEntities.put(copy.getName(), copy);
+            changed.put(copy.getName(), copy);
+        }
+
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        rebuildDb(changed, Collections.emptyMap());
+        this.snapshot.set(new MetaSnapshot(userEntities, s.mfEntities));
+    }
+
+    private static boolean hasField(List<Map<String, Object>> defs, String name) {
+        for (Map<String, Object> def : defs) {
+            if (name.equals(def.get("name"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean lacksField(MetaEntity me, List<Map<String, Object>> defs) {
+        for (Map<String, Object> def : defs) {
+            if (me.getMetaField((String) def.get("name")) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // only for entities not published yet: being built, or a fresh copy
+    private void addExtraFields(MetaEntityImpl mei, List<Map<String, Object>> defs) {
+        if (defs == null) {
+            return;
+        }
+
+        for (Map<String, Object> def : defs) {
+            if (mei.getMetaField((String) def.get("name")) != null) {
+                continue;
+            }
+
+            MetaFieldImpl<?> mfi = MetaFieldImpl.build(this, new HashMap<>(def));
+            mei.addField(mfi);
+            mfi.setMetaEntity(mei);
+        }
+    }
+
+    /**
+     * Build the entities again off to the side, readers keep the previous snapshot until the new one is swapped in
+     */
+    public synchronized void reload() {
+        this.dbStore.invalidateColumnCache();
         initMetaEntities();
     }
 
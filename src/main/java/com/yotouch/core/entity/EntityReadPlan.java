@@ -0,0 +1,150 @@
+package com.yotouch.core.entity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yotouch.core.Consts;
+import com.yotouch.core.entity.mf.ObjectMetaFieldImpl;
+import com.yotouch.core.entity.query.QueryField;
+
+/**
+ * Column readers of one select list, resolved once from the data types.
+ * Reader i reads ResultSet column i + 1, so the plan must be built from the same field list as the SELECT.
+ */
+class EntityReadPlan {
+
+    static final Logger logger = LoggerFactory.getLogger(EntityReadPlan.class);
+
+    interface ColumnReader {
+        void read(ResultSet rs, EntityImpl e) throws SQLException;
+    }
+
+    private final Object source;
+
+    private final ColumnReader[] readers;
+
+    private final List<MetaField<?>> mrFields;
+
+    private EntityReadPlan(Object source, ColumnReader[] readers, List<MetaField<?>> mrFields) {
+        this.source = source;
+        this.readers = readers;
+        this.mrFields = mrFields;
+    }
+
+    Object getSource() {
+        return source;
+    }
+
+    List<MetaField<?>> getMultiReferenceFields() {
+        return mrFields;
+    }
+
+    void read(ResultSet rs, EntityImpl e) throws SQLException {
+        for (ColumnReader reader : readers) {
+            reader.read(rs, e);
+        }
+    }
+
+    /**
+     * Plan for the full projection of a MetaEntity, multi reference fields are kept for loading mapping rows
+     */
+    static EntityReadPlan build(MetaEntity me, Object source, List<? extends QueryField> columns) {
+        List<MetaField<?>> mrFields = new ArrayList<>();
+        for (MetaField<?> mf : me.getMetaFields()) {
+            if (mf.isMultiReference()) {
+                mrFields.add(mf);
+            }
+        }
+
+        return new EntityReadPlan(source, buildReaders(me, columns), mrFields);
+    }
+
+    /**
+     * Plan for an explicit select list, such as a Query with function fields
+     */
+    static EntityReadPlan build(MetaEntity me, List<? extends QueryField> columns) {
+        return new EntityReadPlan(null, buildReaders(me, columns), new ArrayList<>());
+    }
+
+    private static ColumnReader[] buildReaders(MetaEntity me, List<? extends QueryField> columns) {
+        List<ColumnReader> readers = new ArrayList<>();
+
+        for (int i = 0; i < columns.size(); i++) {
+            QueryField qf = columns.get(i);
+            int idx = i + 1;
+
+            MetaField<?> mf;
+            if (qf instanceof MetaField) {
+                mf = (MetaField<?>) qf;
+                if (mf.isMultiReference()) {
+                    continue;
+                }
+            } else {
+                // function field, stored as a free value like Entity.setValue does
+                mf = new ObjectMetaFieldImpl(me, qf.getName(), qf.getName());
+            }
+
+            ColumnReader reader = buildReader(mf, qf.getDataType(), idx);
+            if (reader != null) {
+                readers.add(reader);
+            }
+        }
+
+        return readers.toArray(new ColumnReader[readers.size()]);
+    }
+
+    private static ColumnReader buildReader(MetaField<?> mf, String dataType, int idx) {
+
+        if (mf.isSingleReference()
+                || Consts.META_FIELD_DATA_TYPE_STRING.equalsIgnoreCase(dataType)
+                || Consts.META_FIELD_DATA_TYPE_UUID.equalsIgnoreCase(dataType)
+                || Consts.META_FIELD_DATA_TYPE_TEXT.equalsIgnoreCase(dataType)
+                ) {
+            return (rs, e) -> e.loadValue(mf, rs.getString(idx));
+        } else if (Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(dataType)) {
+            return (rs, e) -> e.loadValue(mf, rs.getTimestamp(idx));
+        } else if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(dataType)
+                || Consts.META_FIELD_DATA_TYPE_BOOLEAN.equalsIgnoreCase(dataType)) {
+            return (rs, e) -> {
+                int v = rs.getInt(idx);
+                e.loadValue(mf, rs.wasNull() ? null : v);
+            };
+        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(dataType)) {
+            return (rs, e) -> {
+                long v = rs.getLong(idx);
+                e.loadValue(mf, rs.wasNull() ? null : v);
+            };
+        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(dataType)) {
+            return (rs, e) -> {
+                double v = rs.getDouble(idx);
+                e.loadValue(mf, rs.wasNull() ? null : v);
+            };
+        } else if (Consts.META_FIELD_DATA_TYPE_BINARY.equalsIgnoreCase(dataType)) {
+            return (rs, e) -> {
+                Blob blob = rs.getBlob(idx);
+                if (blob == null) {
+                    e.loadValue(mf, null);
+                } else {
+                    InputStream is = blob.getBinaryStream();
+                    try {
+                        e.loadValue(mf, ByteStreams.toByteArray(is));
+                    } catch (IOException e1) {
+                        logger.error("Read blob " + mf.getName() + " error", e1);
+                    }
+                }
+            };
+        }
+
+        return null;
+    }
+
+}
@@ -1,23 +1,17 @@
 package com.yotouch.core.entity;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import com.yotouch.core.entity.query.ff.FunctionField;
 import com.yotouch.core.entity.query.QueryField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.RowMapper;
 
-import com.google.common.io.ByteStreams;
-
-import com.yotouch.core.Consts;
 import com.yotouch.core.entity.mf.MultiReferenceMetaFieldImpl;
 import com.yotouch.core.runtime.DbSession;
 
@@ -25,6 +19,8 @@ public class EntityRowMapper implements RowMapper<Entity> {
 
     static final Logger logger = LoggerFactory.getLogger(EntityRowMapper.class);
 
+    private static final int MR_BATCH_SIZE = 500;
+
     private MetaEntity me;
 
     private DbSession dbSession;
@@ -33,6 +29,12 @@ public class EntityRowMapper implements RowMapper<Entity> {
 
     private List<QueryField> fields;
 
+    private EntityReadPlan plan;
+
+    private boolean reuseEntity;
+
+    private EntityImpl reused;
+
     public EntityRowMapper(DbSession dbSession, MetaEntity me, boolean isMrLazy) {
         this.dbSession = dbSession;
         this.me = me;
@@ -42,182 +44,97 @@ public class EntityRowMapper implements RowMapper<Entity> {
     @Override
     public Entity mapRow(ResultSet rs, int rowNum) throws SQLException {
 
-        if (this.fields == null || this.fields.isEmpty()) {
-            this.fields = new ArrayList<>();
-
-            for (MetaField<?> mf : me.getMetaFields()) {
-                this.fields.add(mf);
+        EntityReadPlan plan = this.plan;
+        if (plan == null) {
+            if (this.fields == null || this.fields.isEmpty()) {
+                plan = ((MetaEntityImpl) me).getReadPlan();
+            } else {
+                plan = EntityReadPlan.build(me, this.fields);
             }
+            this.plan = plan;
         }
 
-        Entity e = new EntityImpl(me);
-        //List<MetaField<?>> fields = me.getMetaFields();
-
-        int idx = 0;
-        for (QueryField qf : this.fields) {
-
-            idx += 1;
-
-            if (qf instanceof MetaField) {
-                checkMetaField(rs, (MetaField<?>) qf, e);
-            } else if (qf instanceof FunctionField) {
-                checkFunctionField(rs, (FunctionField) qf, e);
+        EntityImpl e;
+        if (this.reuseEntity && this.reused != null) {
+            e = this.reused;
+            e.clearForReuse();
+        } else {
+            e = new EntityImpl(me);
+            if (this.reuseEntity) {
+                this.reused = e;
             }
-
         }
+        plan.read(rs, e);
 
-        if (!isMrLazy) {
-            for (QueryField qf : this.fields) {
-                if (!(qf instanceof MetaField)) {
-                    continue;
-                }
-
-                MetaField<?> mf = (MetaField<?>) qf;
-
-                if (!mf.isMultiReference()) {
-                    continue;
-                }
-
-                MultiReferenceMetaFieldImpl mrf = (MultiReferenceMetaFieldImpl) mf;
-
-                List<Entity> entities = dbSession.queryRawSql(mrf.getMappingMetaEntity().getName(), "s_" + me.getName() + "Uuid = ? ORDER BY weight", new Object[]{e.getUuid()});
-
-                logger.debug(" multi uuids " + entities.stream().map(ee -> ee.getValue("t_" + mrf.getTargetMetaEntity().getName() + "Uuid")));
+        return e;
+    }
 
-                List<String> uuids = new ArrayList<>();
-                entities.stream().forEach(ee -> uuids.add(ee.getValue("t_" + mrf.getTargetMetaEntity().getName() + "Uuid")));
+    /**
+     * Fill the multi reference fields of the mapped rows, one mapping query per field instead of one per row.
+     * Called by the store once the whole result set has been mapped.
+     */
+    public List<Entity> loadMultiReferences(List<Entity> entities) {
+        if (isMrLazy || plan == null || entities.isEmpty()) {
+            return entities;
+        }
 
-                logger.debug(" multi uuids " + uuids);
+        List<MetaField<?>> mrFields = plan.getMultiReferenceFields();
+        if (mrFields.isEmpty()) {
+            return entities;
+        }
 
-                e.setValue(mf.getName(), uuids);
-            }
+        List<String> rowUuids = new ArrayList<>(entities.size());
+        for (Entity e : entities) {
+            rowUuids.add(e.getUuid());
         }
 
-        return e;
-    }
+        String sourceField = "s_" + me.getName() + "Uuid";
 
-    private void checkMetaField(ResultSet rs, MetaField<?> mf, Entity e) throws SQLException {
-        String fname = mf.getName();
+        for (MetaField<?> mf : mrFields) {
+            MultiReferenceMetaFieldImpl mrf = (MultiReferenceMetaFieldImpl) mf;
+            String targetField = "t_" + mrf.getTargetMetaEntity().getName() + "Uuid";
 
-        logger.debug("Get value from rs " + mf);
+            Map<String, List<String>> grouped = new HashMap<>();
+            for (int from = 0; from < rowUuids.size(); from += MR_BATCH_SIZE) {
+                List<String> chunk = rowUuids.subList(from, Math.min(from + MR_BATCH_SIZE, rowUuids.size()));
 
-        if (Consts.META_FIELD_TYPE_SINGLE_REFERENCE.equalsIgnoreCase(mf.getFieldType())) {
-            String uuid = rs.getString(fname + "Uuid");
-            e.setValue(fname, uuid);
-        } else {
-            if (Consts.META_FIELD_DATA_TYPE_STRING.equalsIgnoreCase(mf.getDataType())
-                    || Consts.META_FIELD_DATA_TYPE_UUID.equalsIgnoreCase(mf.getDataType())
-                    || Consts.META_FIELD_DATA_TYPE_TEXT.equalsIgnoreCase(mf.getDataType())
-                    ) {
-                e.setValue(fname, rs.getString(fname));
-            } else if (Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(mf.getDataType())) {
-                Date d = rs.getTimestamp(fname);
-                e.setValue(fname, d);
-            } else if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(mf.getDataType())) {
-                Object o = rs.getObject(fname);
-                if (o == null) {
-                    e.setValue(fname, null);
-                } else {
-                    e.setValue(fname, rs.getInt(fname));
-                }
-            } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(mf.getDataType())) {
-                Object o = rs.getObject(fname);
-                if (o == null) {
-                    e.setValue(fname, null);
-                } else {
-                    e.setValue(fname, rs.getLong(fname));
-                }
-            } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(mf.getDataType())) {
-                Object o = rs.getObject(fname);
-                if (o == null) {
-                    e.setValue(fname, null);
-                } else {
-                    e.setValue(fname, rs.getDouble(fname));
-                }
-            } else if (Consts.META_FIELD_DATA_TYPE_BINARY.equalsIgnoreCase(mf.getDataType())) {
-
-                Blob blob = rs.getBlob(fname);
-                if (blob == null) {
-                    e.setValue(fname, null);
-                } else {
-                    InputStream is = blob.getBinaryStream();
-                    try {
-                        e.setValue(fname, ByteStreams.toByteArray(is));
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
+                StringBuilder where = new StringBuilder(sourceField).append(" IN (");
+                for (int i = 0; i < chunk.size(); i++) {
+                    where.append(i == 0 ? "?" : ", ?");
                 }
-            } else if (Consts.META_FIELD_DATA_TYPE_BOOLEAN.equalsIgnoreCase(mf.getDataType())) {
-                Object o = rs.getObject(fname);
-                if (o == null) {
-                    e.setValue(fname, null);
-                } else {
-                    e.setValue(fname, rs.getInt(fname));
+                where.append(") ORDER BY weight");
+
+                List<Entity> mappings = dbSession.queryRawSql(mrf.getMappingMetaEntity().getName(), where.toString(), chunk.toArray());
+                for (Entity m : mappings) {
+                    String sourceUuid = m.getValue(sourceField);
+                    String targetUuid = m.getValue(targetField);
+                    grouped.computeIfAbsent(sourceUuid, k -> new ArrayList<>()).add(targetUuid);
                 }
             }
-        }
-    }
-
-    private void checkFunctionField(ResultSet rs, FunctionField ff, Entity e) throws SQLException {
-        String fname = ff.getName();
-
-        logger.debug("Get value from functionFiled " + ff);
-
 
-        if (Consts.META_FIELD_DATA_TYPE_STRING.equalsIgnoreCase(ff.getDataType())
-                || Consts.META_FIELD_DATA_TYPE_UUID.equalsIgnoreCase(ff.getDataType())
-                || Consts.META_FIELD_DATA_TYPE_TEXT.equalsIgnoreCase(ff.getDataType())
-                ) {
-            e.setValue(fname, rs.getString(fname));
-        } else if (Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(ff.getDataType())) {
-            Date d = rs.getTimestamp(fname);
-            e.setValue(fname, d);
-        } else if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(ff.getDataType())) {
-            Object o = rs.getObject(fname);
-            if (o == null) {
-                e.setValue(fname, null);
-            } else {
-                e.setValue(fname, rs.getInt(fname));
-            }
-        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(ff.getDataType())) {
-            Object o = rs.getObject(fname);
-            if (o == null) {
-                e.setValue(fname, null);
-            } else {
-                e.setValue(fname, rs.getLong(fname));
+            for (Entity e : entities) {
+                List<String> uuids = grouped.get(e.getUuid());
+                e.setValue(mf.getName(), uuids == null ? new ArrayList<String>() : uuids);
             }
-        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(ff.getDataType())) {
-            Object o = rs.getObject(fname);
-            if (o == null) {
-                e.setValue(fname, null);
-            } else {
-                e.setValue(fname, rs.getDouble(fname));
-            }
-        } else if (Consts.META_FIELD_DATA_TYPE_BINARY.equalsIgnoreCase(ff.getDataType())) {
 
-            Blob blob = rs.getBlob(fname);
-            if (blob == null) {
-                e.setValue(fname, null);
-            } else {
-                InputStream is = blob.getBinaryStream();
-                try {
-                    e.setValue(fname, ByteStreams.toByteArray(is));
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
-            }
-        } else if (Consts.META_FIELD_DATA_TYPE_BOOLEAN.equalsIgnoreCase(ff.getDataType())) {
-            Object o = rs.getObject(fname);
-            if (o == null) {
-                e.setValue(fname, null);
-            } else {
-                e.setValue(fname, rs.getInt(fname));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Load " + mf.getName() + " of " + entities.size() + " " + me.getName() + " rows");
             }
         }
+
+        return entities;
     }
 
+    /**
+     * Map every row into the same entity, for scans which are done with a row before asking for the next one
+     */
+    public void setReuseEntity(boolean reuseEntity) {
+        this.reuseEntity = reuseEntity;
+        this.reused = null;
+    }
 
     public void setFields(List<QueryField> fields) {
         this.fields = fields;
+        this.plan = null;
     }
 }
@@ -18,4 +18,9 @@ public interface MetaEntity extends Comparable<MetaEntity> {
     
     String getScope();
 
+    /**
+     * Second level cache of getEntity, one of Consts.ENTITY_CACHE_*
+     */
+    String getCacheMode();
+
 }
@@ -1,11 +1,17 @@
 package com.yotouch.core.entity;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.yotouch.core.exception.MetaFieldIsNotSingleReference;
+import com.yotouch.core.Consts;
+import com.yotouch.core.store.db.StatementTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
@@ -15,6 +21,16 @@ public class MetaEntityImpl implements MetaEntity {
     private static final Logger logger = LoggerFactory.getLogger(MetaEntityImpl.class);
 
     private Map<String, MetaField<?>> fieldMap;
+
+    // published copies of fieldMap, rebuilt when a field is added
+    private volatile List<MetaField<?>> fieldList = Collections.emptyList();
+    private volatile Map<String, MetaField<?>> fieldIndex = Collections.emptyMap();
+
+    // dotted name -> resolved path
+    private final Map<String, MetaFieldPath> paths = new ConcurrentHashMap<>();
+
+    // bumped whenever a field of any MetaEntity is added or replaced, paths walk into other entities
+    private static final AtomicLong fieldGeneration = new AtomicLong();
     
     private String name;
     private String displayName;
@@ -25,18 +41,65 @@ public class MetaEntityImpl implements MetaEntity {
 
     private boolean lowerTableNames;
 
+    private String cacheMode = Consts.ENTITY_CACHE_OFF;
+
+    private boolean reloadOnSave;
+
+    private volatile StatementTemplate statementTemplate;
+
+    private volatile EntityReadPlan readPlan;
+
+    // storage kinds of the EntityImpl slots
+    static final byte SLOT_OBJECT = 0;
+    static final byte SLOT_INT    = 1;
+    static final byte SLOT_LONG   = 2;
+    static final byte SLOT_DOUBLE = 3;
+
+    // field name -> slot in EntityImpl, append only so entities built before a field was added stay valid
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private volatile MetaField<?>[] slotFields = new MetaField<?>[0];
+    private volatile byte[] slotKinds = new byte[0];
+
     MetaEntityImpl(String uuid, String name, String displayName, String tablePrefix, String scope, boolean lowerTableName) {
         this.name = name;
         this.uuid = uuid;
         this.displayName = displayName;
         this.tablePrefix = tablePrefix; 
-        this.fieldMap = new HashMap<>();
+        this.fieldMap = new LinkedHashMap<>();
         this.lowerTableNames = lowerTableName;
         this.scope = scope;
     }
 
+    /**
+     * A new MetaEntity with copies of the fields, for adding fields to an entity that is already published
+     */
+    MetaEntityImpl copy() {
+        MetaEntityImpl c = new MetaEntityImpl(uuid, name, displayName, tablePrefix, scope, lowerTableNames);
+        c.cacheMode = this.cacheMode;
+        c.reloadOnSave = this.reloadOnSave;
+
+        for (MetaField<?> mf : this.fieldList) {
+            MetaFieldImpl<?> f = ((MetaFieldImpl<?>) mf).copy(mf.getUuid());
+            c.addField(f);
+            f.setMetaEntity(c);
+        }
+        return c;
+    }
+
     public void addField(MetaField<?> field) {
-        this.fieldMap.put(field.getName(), field);
+        this.putField(field);
+    }
+
+    private synchronized void putField(MetaField<?> mf) {
+        this.fieldMap.put(mf.getName(), mf);
+
+        this.fieldList = Collections.unmodifiableList(new ArrayList<>(this.fieldMap.values()));
+        this.fieldIndex = new HashMap<>(this.fieldMap);
+        this.paths.clear();
+        fieldGeneration.incrementAndGet();
+
+        this.assignSlot(mf);
+        this.statementTemplate = null;
     }
 
     @Override
@@ -53,27 +116,27 @@ public class MetaEntityImpl implements MetaEntity {
     @Override
     public <T extends Object> MetaField<T> getMetaField(String name) {
         
-        String[] nameParts = name.split("\\.");
-        if (nameParts.length > 1) {
-            String firstName = nameParts[0];
-            
-            MetaField mf = this.fieldMap.get(firstName);
-            if (!mf.isReference()) {
-                throw new MetaFieldIsNotSingleReference(this, mf);
+        MetaField<?> mf = this.fieldIndex.get(name);
+        if (mf != null || name.indexOf('.') < 0) {
+            return (MetaField<T>) mf;
+        }
+
+        long generation = fieldGeneration.get();
+        MetaFieldPath path = this.paths.get(name);
+        if (path == null || path.getGeneration() != generation) {
+            path = MetaFieldPath.compile(this, name, generation);
+            if (path == null) {
+                return null;
             }
-            
-            MetaEntity me = mf.getTargetMetaEntity();
-            name = name.substring(name.indexOf('.') + 1);
-            return me.getMetaField(name);
+            this.paths.put(name, path);
         }
         
-        
-        return (MetaField<T>) this.fieldMap.get(name);
+        return (MetaField<T>) path.getField();
     }
 
     @Override
     public List<MetaField<?>> getMetaFields() {
-        return new ArrayList<>(fieldMap.values());
+        return this.fieldList;
     }
 
     @Override
@@ -113,7 +176,76 @@ public class MetaEntityImpl implements MetaEntity {
     }
 
     public void addMetaField(MetaField<?> mf) {
-        this.fieldMap.put(mf.getName(), mf);
+        this.putField(mf);
+    }
+
+    private void assignSlot(MetaField<?> mf) {
+        Integer slot = this.slots.get(mf.getName());
+
+        MetaField<?>[] fields;
+        byte[] kinds;
+        if (slot == null) {
+            slot = this.slotFields.length;
+            fields = Arrays.copyOf(this.slotFields, slot + 1);
+            kinds = Arrays.copyOf(this.slotKinds, slot + 1);
+        } else {
+            fields = this.slotFields.clone();
+            kinds = this.slotKinds.clone();
+        }
+
+        fields[slot] = mf;
+        kinds[slot] = slotKind(mf);
+
+        this.slotKinds = kinds;
+        this.slotFields = fields;
+        this.slots.put(mf.getName(), slot);
+    }
+
+    private static byte slotKind(MetaField<?> mf) {
+        String dataType = mf.getDataType();
+        if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(dataType)) {
+            return SLOT_INT;
+        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(dataType)) {
+            return SLOT_LONG;
+        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(dataType)) {
+            return SLOT_DOUBLE;
+        }
+        return SLOT_OBJECT;
+    }
+
+    /**
+     * @return slot of the field in EntityImpl, -1 if the field doesn't belong to this entity
+     */
+    int slotOf(String fieldName) {
+        Integer slot = this.slots.get(fieldName);
+        return slot == null ? -1 : slot;
+    }
+
+    MetaField<?>[] getSlotFields() {
+        return this.slotFields;
+    }
+
+    byte[] getSlotKinds() {
+        return this.slotKinds;
+    }
+
+    public StatementTemplate getStatementTemplate() {
+        StatementTemplate tpl = this.statementTemplate;
+        if (tpl == null) {
+            tpl = new StatementTemplate(this);
+            this.statementTemplate = tpl;
+        }
+        return tpl;
+    }
+
+    EntityReadPlan getReadPlan() {
+        StatementTemplate tpl = this.getStatementTemplate();
+        EntityReadPlan plan = this.readPlan;
+        if (plan == null || plan.getSource() != tpl) {
+            plan = EntityReadPlan.build(this, tpl, tpl.getColumnFields());
+            this.readPlan = plan;
+        }
+        return plan;
     }
 
     @Override
@@ -126,6 +258,26 @@ public class MetaEntityImpl implements MetaEntity {
         return this.scope;
     }
 
+    @Override
+    public String getCacheMode() {
+        return this.cacheMode;
+    }
+
+    public void setCacheMode(String cacheMode) {
+        this.cacheMode = cacheMode;
+    }
+
+    /**
+     * Columns are filled by the database (triggers, defaults), DbSession.save must read the row back
+     */
+    public boolean isReloadOnSave() {
+        return this.reloadOnSave;
+    }
+
+    public void setReloadOnSave(boolean reloadOnSave) {
+        this.reloadOnSave = reloadOnSave;
+    }
+
 
     public String getTableName() {
         
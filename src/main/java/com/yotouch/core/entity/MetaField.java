@@ -2,6 +2,7 @@ package com.yotouch.core.entity;
 
 import com.yotouch.core.entity.fv.FieldValue;
 import com.yotouch.core.entity.query.QueryField;
+import com.yotouch.core.store.db.FieldBinder;
 
 import java.util.List;
 
@@ -47,5 +48,7 @@ public interface MetaField<T> extends QueryField {
     void addValueOptions(List<ValueOption> valueOptions);
 
     FieldValue<T> newFieldValue(Object value);
+
+    FieldBinder getBinder();
     
 }
@@ -21,6 +21,7 @@ import com.yotouch.core.entity.mf.MultiReferenceMetaFieldImpl;
 import com.yotouch.core.entity.mf.ObjectMetaFieldImpl;
 import com.yotouch.core.entity.mf.SingleReferenceMetaFieldImpl;
 import com.yotouch.core.entity.mf.StringMetaFieldImpl;
+import com.yotouch.core.store.db.FieldBinder;
 
 public abstract class MetaFieldImpl<T> implements MetaField<T>, Cloneable {
     
@@ -36,6 +37,8 @@ public abstract class MetaFieldImpl<T> implements MetaField<T>, Cloneable {
     protected boolean       deleted;
     protected FieldValue<T> defaultValue;
     protected List<ValueOption> valueOptions = new ArrayList<>();
+
+    private FieldBinder binder;
     
     
     @Override
@@ -150,6 +153,16 @@ public abstract class MetaFieldImpl<T> implements MetaField<T>, Cloneable {
     public String getUuid() {
         return this.uuid;
     }
+
+    @Override
+    public FieldBinder getBinder() {
+        FieldBinder b = this.binder;
+        if (b == null) {
+            b = FieldBinder.of(this);
+            this.binder = b;
+        }
+        return b;
+    }
     
     private void setUuid(String uuid) {
         this.uuid = uuid;        
@@ -0,0 +1,52 @@
+package com.yotouch.core.entity;
+
+import com.yotouch.core.exception.MetaFieldIsNotSingleReference;
+
+/**
+ * A dotted field name such as "customer.city.name", resolved once against a MetaEntity.
+ * Generation is the field generation it was resolved at, the path is stale once any MetaEntity replaced a field.
+ */
+class MetaFieldPath {
+
+    private final MetaField<?> field;
+
+    private final long generation;
+
+    private MetaFieldPath(MetaField<?> field, long generation) {
+        this.field = field;
+        this.generation = generation;
+    }
+
+    MetaField<?> getField() {
+        return field;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the path, null if the last field doesn't exist
+     */
+    static MetaFieldPath compile(MetaEntity me, String path, long generation) {
+        String[] names = path.split("\\.");
+
+        MetaEntity current = me;
+        for (int i = 0; i < names.length - 1; i++) {
+            MetaField<?> mf = current.getMetaField(names[i]);
+            if (!mf.isReference()) {
+                throw new MetaFieldIsNotSingleReference(current, mf);
+            }
+
+            current = mf.getTargetMetaEntity();
+        }
+
+        MetaField<?> field = current.getMetaField(names[names.length - 1]);
+        if (field == null) {
+            return null;
+        }
+
+        return new MetaFieldPath(field, generation);
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.yotouch.core.helper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Position after the last row of a keyset page: its sort value and uuid, carried by the client as an opaque token
+ */
+public class KeysetCursor {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Object value;
+    private final String uuid;
+
+    public KeysetCursor(Object value, String uuid) {
+        this.value = value;
+        this.uuid = uuid;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String encode() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("v", value);
+        m.put("u", uuid);
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mapper.writeValueAsBytes(m));
+        } catch (IOException e) {
+            throw new IllegalStateException("Encode keyset cursor error", e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token wasn't made by encode
+     */
+    public static KeysetCursor decode(String token) {
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            Map<String, Object> m = mapper.readValue(json, new TypeReference<Map<String, Object>>() {});
+            Object uuid = m.get("u");
+            if (!(uuid instanceof String)) {
+                throw new IllegalArgumentException("Invalid page token " + token);
+            }
+            return new KeysetCursor(m.get("v"), (String) uuid);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token " + token, e);
+        }
+    }
+
+}
@@ -12,6 +12,15 @@ public class PaginationHelper<T> {
     private int     itemPerPage = Consts.itemPerPage;
     private List<T> itemList;
 
+    private String  countMode = Consts.PAGINATION_COUNT_EXACT;
+    private boolean hasMore;
+
+    // keyset pagination, see DbSession.queryKeyset
+    private String  sortField = "createdAt";
+    private boolean descending = true;
+    private String  pageToken;
+    private String  nextPageToken;
+
     public PaginationHelper(int currentPage) {
         this.currentPage = currentPage < 1 ? 1 : currentPage;
         this.itemPerPage = Consts.itemPerPage;
@@ -79,4 +88,64 @@ public class PaginationHelper<T> {
     public void setItemList(List<T> itemList) {
         this.itemList = itemList;
     }
+
+    public String getCountMode() {
+        return countMode;
+    }
+
+    /**
+     * Consts.PAGINATION_COUNT_EXACT, PAGINATION_COUNT_APPROX or PAGINATION_COUNT_NONE
+     */
+    public void setCountMode(String countMode) {
+        this.countMode = countMode;
+    }
+
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+
+    public String getSortField() {
+        return sortField;
+    }
+
+    /**
+     * Field the keyset pages are ordered by, uuid breaks ties. It must never be null, and wants an index on (field, uuid)
+     */
+    public void setSortField(String sortField) {
+        this.sortField = sortField;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    /**
+     * The nextPageToken of the previous page, null for the first page
+     */
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
+
+    /**
+     * @return token of the page after itemList, null on the last page
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
 }
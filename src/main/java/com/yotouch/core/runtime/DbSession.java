@@ -1,6 +1,8 @@
 package com.yotouch.core.runtime;
 
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import com.yotouch.core.entity.Entity;
 import com.yotouch.core.entity.MetaEntity;
@@ -16,6 +18,32 @@ public interface DbSession {
 
     Entity save(Entity e);
 
+    /**
+     * @param reload read the row back from the database instead of building the result from the saved values
+     */
+    Entity save(Entity e, boolean reload);
+
+    /**
+     * Insert a new entity unless a unique key of its table already holds the row; multi references are not written.
+     * @return true if it was inserted, the entity then holds its uuid
+     */
+    boolean insertIgnore(Entity e);
+
+    /**
+     * Add a unique key over the fields to the table of the entity if it doesn't have it
+     * @return false if it can't be added, e.g. existing rows break it
+     */
+    boolean ensureUniqueKey(String entityName, String keyName, String... fields);
+
+    /**
+     * Save a list of entities with JDBC batches, one batch per MetaEntity and column set.
+     * Uuids of new entities are generated here, the saved entities are returned as they are without reading them back.
+     * The uuid is set on the given entities in place, which changes the hashCode of new ones: don't keep them in a
+     * HashSet or as HashMap keys across the call. All writes run in one transaction; if it fails, the new entities
+     * get their old uuid back.
+     */
+    List<Entity> saveAll(List<Entity> entities);
+
     <M extends EntityModel> M save(M entityModel, String entityName);
 
     <M extends EntityModel> Entity getEntityFromModel(M entityModel, String entityName);
@@ -30,6 +58,13 @@ public interface DbSession {
 
     PaginationHelper<Entity> queryRawSql(String entityName, String where, Object[] args, PaginationHelper<Entity> paginationHelper);
 
+    /**
+     * Seek to the page after paginationHelper.pageToken, ordered by sortField then uuid, and set itemList, hasMore
+     * and nextPageToken. The cost doesn't grow with the depth like LIMIT offset does, and no COUNT is run.
+     * The where clause is a plain condition, without ORDER BY or LIMIT.
+     */
+    PaginationHelper<Entity> queryKeyset(String entityName, String where, Object[] args, PaginationHelper<Entity> paginationHelper);
+
     <M extends EntityModel> List<M> queryRawSql(String entityName, String where, Object[] args, Class<M> clazz);
 
     Entity queryOneRawSql(String entityName, String where, Object[] args);
@@ -48,15 +83,95 @@ public interface DbSession {
 
     void deleteRawSql(MetaEntity me, String where, Object[] args);
 
+    /**
+     * UPDATE ... SET set WHERE where without loading the rows, loaded and cached entities of the MetaEntity are dropped
+     * @return the number of updated rows
+     */
+    int updateRawSql(MetaEntity me, String set, String where, Object[] args);
+
+    /**
+     * Read the rows one by one from a streaming cursor instead of loading them into a list, for exports and full scans.
+     * The stream holds a connection until it is read to the end or closed, use it in try-with-resources.
+     * In a transaction the stream shares the transaction's connection, which can't run other queries meanwhile.
+     * Multi reference fields are not loaded, and the entities are not kept in the unit of work.
+     */
+    Stream<Entity> stream(String entityName, String where, Object[] args);
+
+    /**
+     * @param reuseEntity map every row into the same Entity instance, so a scan allocates no entities;
+     *                    the entity is only valid until the next row, copy whatever has to be kept
+     */
+    Stream<Entity> stream(String entityName, String where, Object[] args, boolean reuseEntity);
+
     Entity queryOne(String entityName, Query q);
 
     List<Entity> query(String entityName, Query q);
 
     List<Entity> queryIn(String entityName, List<String> entityUuids);
 
+    /**
+     * Load the single references of the entities with batched IN queries, paths are like "customer" or "customer.city".
+     * The loaded rows are kept by each entity, later sr() and v(dbSession, "customer.name") don't query again.
+     */
+    void prefetch(List<Entity> entities, String... paths);
+
+    /**
+     * Stamped as creatorId/updaterId on saved entities. Sessions from YotouchRuntime.createDbSession keep their own,
+     * on the shared bean this is bindLoginUser and must be undone the same way.
+     */
     void setLoginUser(Entity loginUser);
 
-    Entity increase(Entity entity, String field, int amount);
+    /**
+     * Login user of the current thread, used by the shared bean and by sessions without one of their own.
+     * Web requests are bound by LoginInterceptor; anything else must call unbindLoginUser in a finally,
+     * or the user leaks into the next task of a pooled thread.
+     */
+    void bindLoginUser(Entity loginUser);
+
+    void unbindLoginUser();
+
+    /**
+     * Queries, loaded entities, identity map and cache hits and saved entities of this session,
+     * empty for the shared bean
+     */
+    Map<String, Object> getStats();
+
+    /**
+     * Size, hit, miss and eviction counters of the entity cache shared by every session
+     */
+    Map<String, Object> getCacheStats();
+
+    /**
+     * Open a unit of work on the current thread, entities loaded by uuid are kept until the matching endUnitOfWork.
+     * Calls may nest, only the outermost end drops the entities.
+     */
+    void beginUnitOfWork();
+
+    void endUnitOfWork();
+
+    /**
+     * Atomically add amount to an int, long, double or numeric string field with one UPDATE.
+     * The new value is put into the given entity, which is returned; other fields are not read again.
+     */
+    Entity increase(Entity entity, String field, Number amount);
+
+    /**
+     * Add amount to the field of the entity with the uuid
+     * @return the new value, null when there is no such entity
+     */
+    Number increase(String entityName, String uuid, String field, Number amount);
+
+    /**
+     * @param alsoSet other fields written by the same UPDATE, field name -> value, like a last changed time
+     */
+    Number increase(String entityName, String uuid, String field, Number amount, Map<String, Object> alsoSet);
+
+    /**
+     * Add many deltas, uuid -> amount, to the field with JDBC batches
+     */
+    void increaseAll(String entityName, String field, Map<String, ? extends Number> deltas);
+
+    void increaseAll(String entityName, String field, Map<String, ? extends Number> deltas, Map<String, Object> alsoSet);
 
     Entity queryOneByField(String metaEntity, String fieldName, Object value);
     
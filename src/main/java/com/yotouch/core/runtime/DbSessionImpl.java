@@ -2,11 +2,15 @@ package com.yotouch.core.runtime;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.google.common.base.Joiner;
 import com.yotouch.core.entity.query.Query;
 import com.yotouch.core.entity.query.ff.CountField;
 import com.yotouch.core.exception.DbSessionException;
+import com.yotouch.core.exception.MetaFieldIsNotSingleReference;
+import com.yotouch.core.exception.NoSuchMetaFieldException;
+import com.yotouch.core.helper.KeysetCursor;
 import com.yotouch.core.helper.PaginationHelper;
 import com.yotouch.core.model.EntityModel;
 import org.slf4j.Logger;
@@ -19,13 +23,23 @@ import com.yotouch.core.entity.EntityImpl;
 import com.yotouch.core.entity.EntityManager;
 import com.yotouch.core.entity.EntityRowMapper;
 import com.yotouch.core.entity.MetaEntity;
+import com.yotouch.core.entity.MetaEntityImpl;
 import com.yotouch.core.entity.MetaField;
+import com.yotouch.core.entity.fv.FieldValue;
 import com.yotouch.core.entity.mf.MultiReferenceMetaFieldImpl;
+import com.yotouch.core.entity.mf.SingleReferenceMetaFieldImpl;
 import com.yotouch.core.store.db.DbStore;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.CacheConfig;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 
 @Component
@@ -34,17 +48,90 @@ public class DbSessionImpl implements DbSession {
     
     static final private Logger logger = LoggerFactory.getLogger(DbSessionImpl.class);
 
+    private static final int PREFETCH_BATCH_SIZE = 500;
+
     @Autowired
     private EntityManager entityMgr;
 
     @Autowired
     private DbStore dbStore;
 
+    @Autowired
+    private EntityCache entityCache;
+
+    @Autowired
+    private PlatformTransactionManager txManager;
+
+    @Autowired
+    private ApplicationContext appCtx;
+
+    // set once the context is refreshed, listeners may depend on DbSession themselves
+    private volatile List<EntityChangeListener> changeListeners;
+
     @Value("${yotouch.entity.multiReference.lazy:}")
     private String isMrLazyStr;
 
+    @Value("${yotouch.db.batchSize:500}")
+    private int batchSize;
+
+    // false for the Spring bean, which every thread shares; true for the sessions made by newSession
+    private final boolean perRequest;
+
+    // the Spring bean a per-request session was made from, null for the bean itself
+    private final DbSessionImpl shared;
+
     private Entity loginUser;
 
+    private final DbSessionStats stats;
+
+    // login user of the thread, bound per request by LoginInterceptor and dropped only by unbindLoginUser,
+    // a job's user outlives the units of work its transactions open and close
+    private static final ThreadLocal<Entity> threadLoginUser = new ThreadLocal<>();
+
+    private static final ThreadLocal<IdentityMap> identityMap = new ThreadLocal<>();
+
+    public DbSessionImpl() {
+        this.perRequest = false;
+        this.stats = null;
+        this.shared = null;
+    }
+
+    private DbSessionImpl(DbSessionImpl shared) {
+        this.perRequest = true;
+        this.stats = new DbSessionStats();
+        this.shared = shared;
+
+        this.entityMgr = shared.entityMgr;
+        this.dbStore = shared.dbStore;
+        this.entityCache = shared.entityCache;
+        this.txManager = shared.txManager;
+        this.appCtx = shared.appCtx;
+        this.isMrLazyStr = shared.isMrLazyStr;
+        this.batchSize = shared.batchSize;
+    }
+
+    /**
+     * A session for one request or job, with its own login user and statistics over the infrastructure of this bean.
+     * The identity map stays the one of the thread's unit of work, so the shared bean and the session agree on loaded entities.
+     */
+    DbSessionImpl newSession() {
+        return new DbSessionImpl(this);
+    }
+
+    private Entity getLoginUser() {
+        if (this.perRequest && this.loginUser != null) {
+            return this.loginUser;
+        }
+        return threadLoginUser.get();
+    }
+
+    private void countQuery(List<Entity> el) {
+        if (this.stats != null) {
+            this.stats.queries++;
+            this.stats.loadedEntities += el.size();
+        }
+    }
+
     private boolean isMrLazy() {
         return "1".equals(isMrLazyStr) || "true".equalsIgnoreCase(isMrLazyStr);
     }
@@ -64,6 +151,15 @@ public class DbSessionImpl implements DbSession {
 
     @Override
     public Entity save(Entity e) {
+        return this.save(e, false);
+    }
+
+    @Override
+    public Entity save(Entity e, boolean reload) {
+        if (this.stats != null) {
+            this.stats.savedEntities++;
+        }
+
         String uuid = e.getUuid();
 
         EntityImpl ei = (EntityImpl) e;
@@ -73,21 +169,11 @@ public class DbSessionImpl implements DbSession {
         boolean isNew = ei.isNew();
 
         if (isNew) {
-            if (this.loginUser != null) {
-                e.setValue("creatorId", this.loginUser.getUuid());
-            }
-            
-            Calendar c = e.v("createdAt");
-            if (c == null) {
-                e.setValue("createdAt", new Date());
-            }
-            if (e.v("status") == null) {
-                e.setValue("status", Consts.STATUS_NORMAL);
-            }
+            this.beforeInsert(e);
             
             uuid = e.getUuid();
             if (StringUtils.isEmpty(uuid)) {
-                uuid = this.dbStore.insert(me, ei.getFieldValueList());   
+                uuid = this.dbStore.insert(me, ei.getFieldValueList(), ei.reserveUuid());
             } else if (uuid.startsWith("-")) {
                 uuid = uuid.substring(1);
                 uuid = this.dbStore.insert(me, ei.getFieldValueList(), uuid);
@@ -95,91 +181,276 @@ public class DbSessionImpl implements DbSession {
                 throw new DbSessionException("Invalid UUID " + uuid + " for Entity " + e);
             }
         } else {
-            if (this.loginUser != null) {
-                e.setValue("updaterId", this.loginUser.getUuid());
-            }
-            e.setValue("updatedAt", new Date());
+            this.beforeUpdate(e);
             // Do Update
             this.dbStore.update(me, uuid, ei.getFieldValueList());
         }
         
-        // save multi reference
-        for (MetaField<?> mf : me.getMetaFields()) {
-            if (mf.isMultiReference() &&
-                    (e.isFieldChanged(mf.getName()) || isNew)) {
-                MultiReferenceMetaFieldImpl mmf = (MultiReferenceMetaFieldImpl) mf;
-                MetaEntity mappingMe = mmf.getMappingMetaEntity();
-                String targetEntityName = mmf.getTargetMetaEntity().getName();
+        this.saveMultiReferences(me, e, uuid, isNew);
 
-                Set<String> s1 = new HashSet<>();
+        this.evict(me, uuid);
 
-                List<String> values = e.getValue(mf.getName());
-                if (values == null) {
-                    values = new ArrayList<>();
-                }
+        // an update of a partly loaded entity doesn't know the other columns
+        if (reload || ((MetaEntityImpl) me).isReloadOnSave() || (!isNew && !ei.holdsAllColumns())) {
+            return this.getEntity(me, uuid);
+        }
 
-                if (!values.isEmpty()) {
-                    s1 = new HashSet<>(values);
-                }
+        Entity saved = ei.copyAsStored(uuid);
+
+        IdentityMap im = this.currentIdentityMap();
+        if (im != null) {
+            im.put(saved);
+        }
+        return saved;
+    }
 
-                logger.debug("Save MR " + mf.getName() + " targetMe " + mappingMe.getName() + " values " + s1);
+    @Override
+    public List<Entity> saveAll(List<Entity> entities) {
+        // uuid given to the new entities, put back if the batch fails so they are still new on a retry
+        Map<Entity, String> givenUuids = new IdentityHashMap<>();
+        try {
+            return new TransactionTemplate(this.txManager).execute(status -> this.doSaveAll(entities, givenUuids));
+        } catch (RuntimeException ex) {
+            for (Map.Entry<Entity, String> entry : givenUuids.entrySet()) {
+                entry.getKey().setValue("uuid", entry.getValue());
+            }
+            throw ex;
+        }
+    }
 
-                List<String> oldValues = e.getOldValue(mf.getName());
-                if (oldValues == null) {
-                    List<Entity> oldEntities = this.queryRawSql(mappingMe.getName(), "s_" + me.getName() + "Uuid = ? ORDER BY weight DESC", new Object[]{uuid});
-                    oldValues = oldEntities.stream().map(o -> (String) o.v("t_" + targetEntityName + "Uuid")).collect(Collectors.toList());
+    private List<Entity> doSaveAll(List<Entity> entities, Map<Entity, String> givenUuids) {
+        if (this.stats != null) {
+            this.stats.savedEntities += entities.size();
+        }
+
+        // entity name -> rows, kept in the order of the list
+        Map<String, List<Entity>> inserts = new LinkedHashMap<>();
+        Map<String, List<Entity>> updates = new LinkedHashMap<>();
+
+        for (Entity e : entities) {
+            EntityImpl ei = (EntityImpl) e;
+            if (ei.isNew()) {
+                this.beforeInsert(e);
+
+                String uuid = e.getUuid();
+                givenUuids.put(e, uuid == null ? "" : uuid);
+                if (StringUtils.isEmpty(uuid)) {
+                    uuid = ei.reserveUuid();
+                } else if (uuid.startsWith("-")) {
+                    uuid = uuid.substring(1);
+                } else {
+                    throw new DbSessionException("Invalid UUID " + uuid + " for Entity " + e);
                 }
+                e.setValue("uuid", uuid);
 
+                inserts.computeIfAbsent(e.getMetaEntity().getName(), k -> new ArrayList<>()).add(e);
+            } else {
+                this.beforeUpdate(e);
+                updates.computeIfAbsent(e.getMetaEntity().getName(), k -> new ArrayList<>()).add(e);
+            }
+        }
 
-                Set<String> s2 = new HashSet<>();
-                if (oldValues != null && !oldValues.isEmpty()) {
-                    s2 = new HashSet<>(oldValues);
+        List<Entity> mappings = new ArrayList<>();
 
-                    logger.debug("Set 1 and 2 " + s1 + ":" + s2 + (s1.equals(s2)));
+        for (List<Entity> el : inserts.values()) {
+            MetaEntity me = el.get(0).getMetaEntity();
 
-                    if (s1.equals(s2)) {
-                        continue;
-                    }
-                }
-                logger.debug("Save MR " + mf.getName() + " old values " + s2);
+            List<List<FieldValue<?>>> rows = new ArrayList<>(el.size());
+            for (Entity e : el) {
+                rows.add(((EntityImpl) e).getFieldValueList());
+            }
+            this.dbStore.batchInsert(me, rows, batchSize);
+
+            for (Entity e : el) {
+                mappings.addAll(this.newMultiReferenceMappings(me, e));
+                this.fireChanged(me, e.getUuid());
+            }
+        }
 
-                Set<String> newUuids = Sets.difference(s1, s2);
-                Set<String> removeUuids = Sets.difference(s2, s1);
+        for (List<Entity> el : updates.values()) {
+            MetaEntity me = el.get(0).getMetaEntity();
 
-                for (String u : removeUuids) {
-                    this.deleteRawSql(mappingMe, "s_" + me.getName() + "Uuid=? AND t_" + targetEntityName + "Uuid=?", new Object[]{uuid, u});
-                }
+            List<String> uuids = new ArrayList<>(el.size());
+            List<List<FieldValue<?>>> rows = new ArrayList<>(el.size());
+            for (Entity e : el) {
+                uuids.add(e.getUuid());
+                rows.add(((EntityImpl) e).getFieldValueList());
+            }
+            this.dbStore.batchUpdate(me, uuids, rows, batchSize);
 
+            for (Entity e : el) {
+                this.saveMultiReferences(me, e, e.getUuid(), false);
+                this.evict(me, e.getUuid());
+            }
+        }
 
-                int weight = 0;
-                Entity lastMr = this.queryOneRawSql(mappingMe.getName(), "s_" + me.getName() + "Uuid = ? ORDER BY weight DESC", new Object[]{uuid});
-                if (lastMr != null) {
-                    weight = lastMr.v("weight");
-                }
+        if (!mappings.isEmpty()) {
+            this.doSaveAll(mappings, new IdentityHashMap<>());
+        }
 
-                weight += 1;
+        for (Entity e : entities) {
+            ((EntityImpl) e).markPersisted();
+        }
 
-                for (String targetUuid: values) {
+        return entities;
+    }
 
-                    if (!newUuids.contains(targetUuid)) {
-                        continue;
-                    }
+    @Override
+    public boolean insertIgnore(Entity e) {
+        EntityImpl ei = (EntityImpl) e;
+        if (!ei.isNew()) {
+            throw new DbSessionException("insertIgnore needs a new entity, " + e + " is saved");
+        }
 
-                    Entity mr = this.newEntity(mappingMe.getName());
-                    mr.setValue("s_" + me.getName() + "Uuid", uuid);
-                    mr.setValue("t_" + targetEntityName + "Uuid", targetUuid);
-                    mr.setValue("status", Consts.STATUS_NORMAL);
-                    mr.setValue("weight", weight);
-                    this.save(mr);
+        MetaEntity me = e.getMetaEntity();
+        this.beforeInsert(e);
 
-                    weight += 1;
-                }
+        String uuid = ei.reserveUuid();
+        if (!this.dbStore.insertIgnore(me, ei.getFieldValueList(), uuid)) {
+            return false;
+        }
+
+        e.setValue("uuid", uuid);
+        ei.markPersisted();
+        this.fireChanged(me, uuid);
+        return true;
+    }
+
+    @Override
+    public boolean ensureUniqueKey(String entityName, String keyName, String... fields) {
+        MetaEntity me = entityMgr.getMetaEntity(entityName);
+        for (String field : fields) {
+            if (me.getMetaField(field) == null) {
+                throw new NoSuchMetaFieldException(me, field);
+            }
+        }
+        return this.dbStore.ensureUniqueKey(me, keyName, fields);
+    }
+
+    /**
+     * Mapping rows of the multi references of a new entity
+     */
+    private List<Entity> newMultiReferenceMappings(MetaEntity me, Entity e) {
+        List<Entity> mappings = new ArrayList<>();
+
+        for (MetaField<?> mf : me.getMetaFields()) {
+            if (!mf.isMultiReference()) {
+                continue;
+            }
+
+            List<String> values = e.getValue(mf.getName());
+            if (values != null && !values.isEmpty()) {
+                mappings.addAll(this.newMappings(me, (MultiReferenceMetaFieldImpl) mf, e.getUuid(), new LinkedHashSet<>(values), 1));
             }
         }
 
+        return mappings;
+    }
+
+    private void beforeInsert(Entity e) {
+        Entity loginUser = this.getLoginUser();
+        if (loginUser != null) {
+            e.setValue("creatorId", loginUser.getUuid());
+        }
         
+        Calendar c = e.v("createdAt");
+        if (c == null) {
+            e.setValue("createdAt", new Date());
+        }
+        if (e.v("status") == null) {
+            e.setValue("status", Consts.STATUS_NORMAL);
+        }
+    }
+
+    private void beforeUpdate(Entity e) {
+        Entity loginUser = this.getLoginUser();
+        if (loginUser != null) {
+            e.setValue("updaterId", loginUser.getUuid());
+        }
+        e.setValue("updatedAt", new Date());
+    }
+
+    /**
+     * Apply the changed multi references of a saved entity: one select of the old mapping rows,
+     * one DELETE ... IN for the removed targets and one batch INSERT for the added ones.
+     */
+    private void saveMultiReferences(MetaEntity me, Entity e, String uuid, boolean isNew) {
+        for (MetaField<?> mf : me.getMetaFields()) {
+            if (!mf.isMultiReference() || !(e.isFieldChanged(mf.getName()) || isNew)) {
+                continue;
+            }
+
+            MultiReferenceMetaFieldImpl mmf = (MultiReferenceMetaFieldImpl) mf;
+            MetaEntity mappingMe = mmf.getMappingMetaEntity();
+            String sourceField = "s_" + me.getName() + "Uuid";
+            String targetField = "t_" + mmf.getTargetMetaEntity().getName() + "Uuid";
+
+            List<String> values = e.getValue(mf.getName());
+            if (values == null) {
+                values = new ArrayList<>();
+            }
+            Set<String> s1 = new LinkedHashSet<>(values);
+
+            Set<String> s2 = new LinkedHashSet<>();
+            int weight = 0;
+            if (!isNew) {
+                List<Entity> oldEntities = this.queryRawSql(mappingMe.getName(), sourceField + " = ? ORDER BY weight", new Object[]{uuid});
+                for (Entity o : oldEntities) {
+                    s2.add(o.v(targetField));
+                    Integer w = o.v("weight");
+                    if (w != null && w > weight) {
+                        weight = w;
+                    }
+                }
+            }
+
+            if (s1.equals(s2)) {
+                continue;
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Save MR " + mf.getName() + " targetMe " + mappingMe.getName() + " values " + s1 + " old values " + s2);
+            }
+
+            List<String> removeUuids = new ArrayList<>(Sets.difference(s2, s1));
+            for (int from = 0; from < removeUuids.size(); from += batchSize) {
+                List<String> chunk = removeUuids.subList(from, Math.min(from + batchSize, removeUuids.size()));
+
+                String[] qa = new String[chunk.size()];
+                Arrays.fill(qa, "?");
+
+                List<Object> args = new ArrayList<>(chunk.size() + 1);
+                args.add(uuid);
+                args.addAll(chunk);
+                this.deleteRawSql(mappingMe, sourceField + " = ? AND " + targetField + " IN (" + Joiner.on(",").join(qa) + ")", args.toArray());
+            }
+
+            List<String> newUuids = new ArrayList<>(Sets.difference(s1, s2));
+            if (!newUuids.isEmpty()) {
+                this.saveAll(this.newMappings(me, mmf, uuid, newUuids, weight + 1));
+            }
+        }
+    }
 
-        return this.getEntity(e.getMetaEntity().getName(), uuid);
+    /**
+     * Mapping rows from one entity to the targets, weights follow the order of the targets
+     */
+    private List<Entity> newMappings(MetaEntity me, MultiReferenceMetaFieldImpl mmf, String uuid, Collection<String> targetUuids, int weight) {
+        MetaEntity mappingMe = mmf.getMappingMetaEntity();
+        String targetEntityName = mmf.getTargetMetaEntity().getName();
+
+        List<Entity> mappings = new ArrayList<>(targetUuids.size());
+        for (String targetUuid : targetUuids) {
+            Entity mr = this.newEntity(mappingMe.getName());
+            mr.setValue("s_" + me.getName() + "Uuid", uuid);
+            mr.setValue("t_" + targetEntityName + "Uuid", targetUuid);
+            mr.setValue("status", Consts.STATUS_NORMAL);
+            mr.setValue("weight", weight);
+            mappings.add(mr);
+
+            weight += 1;
+        }
+        return mappings;
     }
 
     @Override
@@ -204,6 +475,27 @@ public class DbSessionImpl implements DbSession {
     @Override
     public void deleteRawSql(MetaEntity me, String where, Object[] args) {
         this.dbStore.deleteRawSql(me, where, args);
+        this.evictAll(me);
+    }
+
+    @Override
+    public int updateRawSql(MetaEntity me, String set, String where, Object[] args) {
+        int rows = this.dbStore.updateRawSql(me, set, where, args);
+        this.evictAll(me);
+        return rows;
+    }
+
+    private void evictAll(MetaEntity me) {
+        this.entityCache.evictAll(me);
+        this.afterCommit(() -> this.entityCache.evictAll(me));
+        IdentityMap im = identityMap.get();
+        if (im != null) {
+            im.evictAll(me);
+        }
+
+        for (EntityChangeListener l : this.getChangeListeners()) {
+            l.entitiesChanged(me);
+        }
     }
 
 
@@ -211,6 +503,7 @@ public class DbSessionImpl implements DbSession {
     @Override
     public void deleteEntity(MetaEntity me, String u) {
         this.dbStore.deleteRawSql(me, "uuid=?", new Object[]{u});
+        this.evict(me, u);
     }
 
     @Override
@@ -234,12 +527,43 @@ public class DbSessionImpl implements DbSession {
     @Override
     //@Cacheable
     public Entity getEntity(MetaEntity me, String uuid) {
+        IdentityMap im = this.currentIdentityMap();
+        if (im != null) {
+            Entity e = im.get(me, uuid);
+            if (e != null) {
+                if (this.stats != null) {
+                    this.stats.identityMapHits++;
+                }
+                return e;
+            }
+        }
+
+        Entity cached = this.entityCache.get(me, uuid);
+        if (cached != null) {
+            if (this.stats != null) {
+                this.stats.cacheHits++;
+            }
+            if (im != null) {
+                im.put(cached);
+            }
+            return cached;
+        }
+
         List<Entity> el = this.dbStore.query(me, uuid, new EntityRowMapper(this, me, isMrLazy()));
+        this.countQuery(el);
         
         if (el.isEmpty()) {
             return null;
         } else {
-            return el.get(0);
+            Entity e = el.get(0);
+            // a row read in a transaction may be uncommitted, or older than a commit the transaction can't see
+            if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+                this.entityCache.put(e);
+            }
+            if (im != null) {
+                im.put(e);
+            }
+            return e;
         }
     }
 
@@ -252,11 +576,35 @@ public class DbSessionImpl implements DbSession {
     @Override
     public List<Entity> queryRawSql(String entityName, String where, Object[] args) {
         MetaEntity me = entityMgr.getMetaEntity(entityName);
-        return this.dbStore.querySql(me, where, args, new EntityRowMapper(this, me, isMrLazy()));
+        List<Entity> el = this.dbStore.querySql(me, where, args, new EntityRowMapper(this, me, isMrLazy()));
+        this.countQuery(el);
+        return el;
     }
 
     @Override
     public PaginationHelper<Entity> queryRawSql(String entityName, String where, Object[] args, PaginationHelper<Entity> paginationHelper) {
+        String countMode = paginationHelper.getCountMode();
+        int itemPerPage = paginationHelper.getItemPerPage();
+
+        if (Consts.PAGINATION_COUNT_NONE.equalsIgnoreCase(countMode)) {
+            this.queryPageWithPeek(entityName, where, args, paginationHelper);
+            int currentPage = paginationHelper.getCurrentPage();
+            paginationHelper.setLastPage(currentPage + (paginationHelper.isHasMore() ? 1 : 0));
+            return paginationHelper;
+        }
+
+        if (Consts.PAGINATION_COUNT_APPROX.equalsIgnoreCase(countMode)) {
+            MetaEntity me = entityMgr.getMetaEntity(entityName);
+            int estimate = (int) Math.min(Integer.MAX_VALUE, this.dbStore.estimateCount(me, where, args));
+
+            this.queryPageWithPeek(entityName, where, args, paginationHelper);
+            int currentPage = paginationHelper.getCurrentPage();
+            paginationHelper.setTotalRows(estimate);
+            // the estimate may be short of the rows actually found
+            paginationHelper.setLastPage(Math.max(paginationHelper.getLastPage(), currentPage + (paginationHelper.isHasMore() ? 1 : 0)));
+            return paginationHelper;
+        }
+
         CountField countField = new CountField();
         Query query = new Query();
         query.addField(countField);
@@ -266,13 +614,127 @@ public class DbSessionImpl implements DbSession {
 
         paginationHelper.setTotalRows(totalRow);
         int currentPage = paginationHelper.getCurrentPage();
-        int offset = (currentPage - 1) * paginationHelper.getItemPerPage();
+        int offset = (currentPage - 1) * itemPerPage;
 
-        paginationHelper.setItemList(queryRawSql(entityName, where + " LIMIT " + offset + ", " + paginationHelper.getItemPerPage(), args));
+        paginationHelper.setItemList(queryRawSql(entityName, where + " LIMIT " + offset + ", " + itemPerPage, args));
+        paginationHelper.setHasMore(currentPage < paginationHelper.getLastPage());
 
         return paginationHelper;
     }
 
+    /**
+     * The page asked for without knowing the last page, one extra row tells whether there is a next page.
+     * Sets itemList and hasMore, lastPage is left to the caller.
+     */
+    private void queryPageWithPeek(String entityName, String where, Object[] args, PaginationHelper<Entity> paginationHelper) {
+        // getCurrentPage clamps to lastPage, unknown here
+        paginationHelper.setLastPage(Integer.MAX_VALUE);
+        int itemPerPage = paginationHelper.getItemPerPage();
+        int offset = (paginationHelper.getCurrentPage() - 1) * itemPerPage;
+
+        List<Entity> el = queryRawSql(entityName, where + " LIMIT " + offset + ", " + (itemPerPage + 1), args);
+        boolean hasMore = el.size() > itemPerPage;
+        if (hasMore) {
+            el = new ArrayList<>(el.subList(0, itemPerPage));
+        }
+
+        paginationHelper.setHasMore(hasMore);
+        paginationHelper.setItemList(el);
+    }
+
+    @Override
+    public PaginationHelper<Entity> queryKeyset(String entityName, String where, Object[] args, PaginationHelper<Entity> paginationHelper) {
+        MetaEntity me = entityMgr.getMetaEntity(entityName);
+        String sortField = paginationHelper.getSortField();
+        MetaField<?> mf = me.getMetaField(sortField);
+        if (mf == null) {
+            throw new NoSuchMetaFieldException(me, sortField);
+        }
+        if (mf.isReference()) {
+            throw new DbSessionException("Keyset pagination needs a data field to sort by, " + sortField + " is a reference");
+        }
+
+        boolean desc = paginationHelper.isDescending();
+        String dir = desc ? " DESC" : " ASC";
+        int itemPerPage = paginationHelper.getItemPerPage();
+
+        StringBuilder sql = new StringBuilder();
+        List<Object> sqlArgs = new ArrayList<>();
+        if (!StringUtils.isEmpty(where)) {
+            sql.append("(").append(where).append(")");
+            if (args != null) {
+                sqlArgs.addAll(Arrays.asList(args));
+            }
+        }
+
+        String token = paginationHelper.getPageToken();
+        if (!StringUtils.isEmpty(token)) {
+            KeysetCursor cursor = KeysetCursor.decode(token);
+            Object v = toSortValue(mf, cursor.getValue());
+            String op = desc ? " < ?" : " > ?";
+
+            if (sql.length() > 0) {
+                sql.append(" AND ");
+            }
+            sql.append("(").append(sortField).append(op)
+                    .append(" OR (").append(sortField).append(" = ? AND uuid").append(op).append("))");
+            sqlArgs.add(v);
+            sqlArgs.add(v);
+            sqlArgs.add(cursor.getUuid());
+        }
+
+        if (sql.length() == 0) {
+            sql.append("1 = 1");
+        }
+        sql.append(" ORDER BY ").append(sortField).append(dir).append(", uuid").append(dir)
+                .append(" LIMIT ").append(itemPerPage + 1);
+
+        List<Entity> el = queryRawSql(entityName, sql.toString(), sqlArgs.toArray());
+        boolean hasMore = el.size() > itemPerPage;
+        if (hasMore) {
+            el = new ArrayList<>(el.subList(0, itemPerPage));
+        }
+
+        String nextPageToken = null;
+        if (hasMore) {
+            Entity last = el.get(el.size() - 1);
+            nextPageToken = new KeysetCursor(fromSortValue(last.v(sortField)), last.getUuid()).encode();
+        }
+
+        paginationHelper.setItemList(el);
+        paginationHelper.setHasMore(hasMore);
+        paginationHelper.setNextPageToken(nextPageToken);
+        return paginationHelper;
+    }
+
+    /**
+     * Keyset tokens are JSON, keep datetimes as millis
+     */
+    private static Object fromSortValue(Object v) {
+        if (v instanceof Calendar) {
+            return ((Calendar) v).getTimeInMillis();
+        } else if (v instanceof Date) {
+            return ((Date) v).getTime();
+        }
+        return v;
+    }
+
+    private static Object toSortValue(MetaField<?> mf, Object v) {
+        if (v == null) {
+            throw new IllegalArgumentException("Invalid page token, no value of " + mf.getName());
+        }
+
+        String dataType = mf.getDataType();
+        if (Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(dataType) && v instanceof Number) {
+            return new java.sql.Timestamp(((Number) v).longValue());
+        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(dataType) && v instanceof Number) {
+            return ((Number) v).longValue();
+        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(dataType) && v instanceof Number) {
+            return ((Number) v).doubleValue();
+        }
+        return v;
+    }
+
     @Override
     public <M extends EntityModel> List<M> queryRawSql(String entityName, String where, Object[] args, Class<M> clazz) {
         List<Entity> entityList = queryRawSql(entityName, where, args);
@@ -287,10 +749,32 @@ public class DbSessionImpl implements DbSession {
         return null;
     }
 
+    @Override
+    public Stream<Entity> stream(String entityName, String where, Object[] args) {
+        return this.stream(entityName, where, args, false);
+    }
+
+    @Override
+    public Stream<Entity> stream(String entityName, String where, Object[] args, boolean reuseEntity) {
+        MetaEntity me = entityMgr.getMetaEntity(entityName);
+
+        EntityRowMapper mapper = new EntityRowMapper(this, me, true);
+        mapper.setReuseEntity(reuseEntity);
+
+        Stream<Entity> rows = this.dbStore.stream(me, where, args, mapper);
+        if (this.stats == null) {
+            return rows;
+        }
+
+        this.stats.queries++;
+        return rows.peek(e -> this.stats.loadedEntities++);
+    }
+
     @Override
     public List<Entity> getAll(String entityName) {
         MetaEntity me = entityMgr.getMetaEntity(entityName);
         List<Entity> el = this.dbStore.querySql(me, "", null, new EntityRowMapper(this, me, isMrLazy()));
+        this.countQuery(el);
         return el;
     }
 
@@ -345,6 +829,7 @@ public class DbSessionImpl implements DbSession {
     public List<Entity> query(String entityName, Query q) {
         MetaEntity me = entityMgr.getMetaEntity(entityName);
         List<Entity> el = this.dbStore.query(me, q, new EntityRowMapper(this, me, isMrLazy()));
+        this.countQuery(el);
         if (el.isEmpty()) {
             return null;
         } else {
@@ -356,52 +841,324 @@ public class DbSessionImpl implements DbSession {
     public List<Entity> queryIn(String entityName, List<String> entityUuids) {
         if (entityUuids.size() == 0) {
             return new ArrayList<>();
-        } else {
-            String[] qa = new String[entityUuids.size()];
-            Arrays.fill(qa, "?");
-            String where = Joiner.on(",").join(qa);
+        }
+
+        IdentityMap im = this.currentIdentityMap();
+        if (im == null) {
+            return this.queryInDb(entityName, entityUuids);
+        }
 
-            return this.queryRawSql(entityName, " uuid IN (" + where + ")", entityUuids.toArray());
+        MetaEntity me = entityMgr.getMetaEntity(entityName);
+        List<String> missing = new ArrayList<>();
+        for (String uuid : entityUuids) {
+            if (im.get(me, uuid) == null) {
+                missing.add(uuid);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            for (Entity e : this.queryInDb(entityName, missing)) {
+                im.put(e);
+            }
         }
+
+        List<Entity> result = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String uuid : entityUuids) {
+            Entity e = im.get(me, uuid);
+            if (e != null && seen.add(uuid)) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    private List<Entity> queryInDb(String entityName, List<String> entityUuids) {
+        String[] qa = new String[entityUuids.size()];
+        Arrays.fill(qa, "?");
+        String where = Joiner.on(",").join(qa);
+
+        return this.queryRawSql(entityName, " uuid IN (" + where + ")", entityUuids.toArray());
     }
 
     @Override
-    public void setLoginUser(Entity loginUser) {
-        this.loginUser = loginUser;
+    public void beginUnitOfWork() {
+        IdentityMap im = identityMap.get();
+        if (im == null) {
+            im = new IdentityMap();
+            identityMap.set(im);
+        }
+        im.enter();
     }
 
     @Override
-    public Entity increase(Entity entity, String field, int amount) {
-        Object o = entity.v(field);
+    public void endUnitOfWork() {
+        IdentityMap im = identityMap.get();
+        if (im != null && im.exit()) {
+            identityMap.remove();
+        }
+    }
+
+    /**
+     * The identity map of the current thread, null when no unit of work is open.
+     * An active Spring transaction opens one by itself, and rolled back transactions drop what was loaded.
+     */
+    private IdentityMap currentIdentityMap() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return identityMap.get();
+        }
+
+        IdentityMap im = identityMap.get();
+        if (im != null && TransactionSynchronizationManager.hasResource(im)) {
+            return im;
+        }
 
-        int v = 0;
-        if (o instanceof String) {
-            v = Integer.parseInt((String)o);
+        boolean opened = (im == null);
+        if (opened) {
+            this.beginUnitOfWork();
+            im = identityMap.get();
+        }
+
+        IdentityMap txMap = im;
+        TransactionSynchronizationManager.bindResource(txMap, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(txMap);
+                if (status != STATUS_COMMITTED) {
+                    txMap.clear();
+                }
+                if (opened) {
+                    endUnitOfWork();
+                }
+            }
+        });
+
+        return im;
+    }
+
+    private void evict(MetaEntity me, String uuid) {
+        this.entityCache.evict(me, uuid);
+        // again once committed, a reader outside the transaction may have cached the old row meanwhile
+        this.afterCommit(() -> this.entityCache.evict(me, uuid));
+
+        IdentityMap im = identityMap.get();
+        if (im != null) {
+            im.evict(me, uuid);
+        }
+
+        this.fireChanged(me, uuid);
+    }
+
+    // runs r once the transaction commits, never without one: callers have already done the same work right away
+    private void afterCommit(Runnable r) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                r.run();
+            }
+        });
+    }
+
+    @EventListener
+    public void onContextRefreshed(ContextRefreshedEvent event) {
+        if (event.getApplicationContext() == this.appCtx) {
+            this.changeListeners = new ArrayList<>(this.appCtx.getBeansOfType(EntityChangeListener.class).values());
+        }
+    }
+
+    private List<EntityChangeListener> getChangeListeners() {
+        List<EntityChangeListener> listeners = this.shared == null ? this.changeListeners : this.shared.changeListeners;
+        if (listeners == null) {
+            // a write while the context starts, the listeners created so far
+            listeners = new ArrayList<>(this.appCtx.getBeansOfType(EntityChangeListener.class).values());
+        }
+        return listeners;
+    }
+
+    private void fireChanged(MetaEntity me, String uuid) {
+        for (EntityChangeListener l : this.getChangeListeners()) {
+            l.entityChanged(me, uuid);
+        }
+    }
+
+    @Override
+    public void prefetch(List<Entity> entities, String... paths) {
+        // rows loaded by this call, shared by paths with the same prefix
+        Map<String, Entity> loaded = new HashMap<>();
+
+        for (String path : paths) {
+            List<Entity> current = entities;
+            for (String fieldName : path.split("\\.")) {
+                current = this.prefetchLevel(current, fieldName, loaded);
+                if (current.isEmpty()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private List<Entity> prefetchLevel(List<Entity> entities, String fieldName, Map<String, Entity> loaded) {
+        // target entity name -> uuids still to load
+        Map<String, Set<String>> missing = new LinkedHashMap<>();
+        for (Entity e : entities) {
+            MetaEntity me = e.getMetaEntity();
+            MetaField<?> mf = me.getMetaField(fieldName);
+            if (mf == null) {
+                throw new NoSuchMetaFieldException(me, fieldName);
+            }
+            if (!mf.isSingleReference()) {
+                throw new MetaFieldIsNotSingleReference(me, mf);
+            }
+
+            String uuid = e.getValue(fieldName);
+            String targetName = ((SingleReferenceMetaFieldImpl) mf).getTargetMetaEntity().getName();
+            if (!StringUtils.isEmpty(uuid) && !loaded.containsKey(targetName + ":" + uuid)) {
+                missing.computeIfAbsent(targetName, k -> new LinkedHashSet<>()).add(uuid);
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> entry : missing.entrySet()) {
+            List<String> uuids = new ArrayList<>(entry.getValue());
+            for (int from = 0; from < uuids.size(); from += PREFETCH_BATCH_SIZE) {
+                List<String> chunk = uuids.subList(from, Math.min(from + PREFETCH_BATCH_SIZE, uuids.size()));
+                for (Entity ref : this.queryIn(entry.getKey(), chunk)) {
+                    loaded.put(entry.getKey() + ":" + ref.getUuid(), ref);
+                }
+            }
+        }
+
+        List<Entity> next = new ArrayList<>();
+        Set<Entity> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Entity e : entities) {
+            MetaField<?> mf = e.getMetaEntity().getMetaField(fieldName);
+            String uuid = e.getValue(fieldName);
+            if (StringUtils.isEmpty(uuid)) {
+                continue;
+            }
+
+            String targetName = ((SingleReferenceMetaFieldImpl) mf).getTargetMetaEntity().getName();
+            Entity ref = loaded.get(targetName + ":" + uuid);
+            if (ref != null) {
+                ((EntityImpl) e).putSingleReference(ref);
+                if (seen.add(ref)) {
+                    next.add(ref);
+                }
+            }
+        }
+
+        return next;
+    }
+
+    @Override
+    public void setLoginUser(Entity loginUser) {
+        if (this.perRequest) {
+            this.loginUser = loginUser;
         } else {
-            v = (int) o;
+            this.bindLoginUser(loginUser);
         }
+    }
 
+    @Override
+    public void bindLoginUser(Entity loginUser) {
+        if (loginUser == null) {
+            threadLoginUser.remove();
+        } else {
+            threadLoginUser.set(loginUser);
+        }
+    }
+
+    @Override
+    public void unbindLoginUser() {
+        threadLoginUser.remove();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return this.stats == null ? new LinkedHashMap<>() : this.stats.toMap();
+    }
+
+    @Override
+    public Map<String, Object> getCacheStats() {
+        return this.entityCache.getStats();
+    }
+
+    @Override
+    public Entity increase(Entity entity, String field, Number amount) {
         MetaEntity me = entity.getMetaEntity();
+        MetaField<?> mf = me.getMetaField(field);
+        if (mf == null) {
+            throw new NoSuchMetaFieldException(me, field);
+        }
+
         String uuid = entity.getUuid();
+        Number v = this.increase(me, uuid, field, amount, null);
+        if (v == null) {
+            throw new DbSessionException("No " + me.getName() + " with uuid " + uuid + " to increase " + field);
+        }
 
-        this.dbStore.increase(me, uuid, field, amount);
+        ((EntityImpl) entity).putStoredValue(field, toFieldValue(mf, v));
+        return entity;
+    }
 
-        Entity newEntity = this.getEntity(me, uuid);
+    @Override
+    public Number increase(String entityName, String uuid, String field, Number amount) {
+        return this.increase(entityName, uuid, field, amount, null);
+    }
 
-        Object newO = newEntity.v(field);
-        int newV = 0;
-        if (newO instanceof String) {
-            newV = Integer.parseInt((String) newO);
-        } else {
-            newV = (int) newO;
+    @Override
+    public Number increase(String entityName, String uuid, String field, Number amount, Map<String, Object> alsoSet) {
+        MetaEntity me = entityMgr.getMetaEntity(entityName);
+        return this.increase(me, uuid, field, amount, alsoSet);
+    }
+
+    private Number increase(MetaEntity me, String uuid, String field, Number amount, Map<String, Object> alsoSet) {
+        Number v = this.dbStore.increase(me, uuid, field, amount, alsoSet);
+        this.evict(me, uuid);
+        return v;
+    }
+
+    @Override
+    public void increaseAll(String entityName, String field, Map<String, ? extends Number> deltas) {
+        this.increaseAll(entityName, field, deltas, null);
+    }
+
+    @Override
+    public void increaseAll(String entityName, String field, Map<String, ? extends Number> deltas, Map<String, Object> alsoSet) {
+        if (deltas.isEmpty()) {
+            return;
         }
 
-        if (newV == v + amount) {
-            return newEntity;
-        } else {
-            return this.increase(newEntity, field, amount);
+        MetaEntity me = entityMgr.getMetaEntity(entityName);
+        this.dbStore.increaseAll(me, field, deltas, alsoSet, batchSize);
+        for (String uuid : deltas.keySet()) {
+            this.evict(me, uuid);
+        }
+    }
+
+    /**
+     * The increased column comes back as a DECIMAL, DOUBLE or BIGINT, turn it into the type of the field
+     */
+    private static Object toFieldValue(MetaField<?> mf, Number v) {
+        String dataType = mf.getDataType();
+        if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(dataType)) {
+            return v.intValue();
+        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(dataType)) {
+            return v.longValue();
+        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(dataType)) {
+            return v.doubleValue();
         }
 
+        // numeric strings, like the value of a prop
+        double d = v.doubleValue();
+        if (d == Math.rint(d) && !Double.isInfinite(d)) {
+            return String.valueOf(v.longValue());
+        }
+        return String.valueOf(d);
     }
 
     @Override
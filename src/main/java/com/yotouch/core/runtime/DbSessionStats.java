@@ -0,0 +1,27 @@
+package com.yotouch.core.runtime;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counters of one DbSession made by YotouchRuntime.createDbSession, used by a single request thread.
+ */
+class DbSessionStats {
+
+    long queries;
+    long loadedEntities;
+    long identityMapHits;
+    long cacheHits;
+    long savedEntities;
+
+    Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("queries", queries);
+        m.put("loadedEntities", loadedEntities);
+        m.put("identityMapHits", identityMapHits);
+        m.put("cacheHits", cacheHits);
+        m.put("savedEntities", savedEntities);
+        return m;
+    }
+
+}
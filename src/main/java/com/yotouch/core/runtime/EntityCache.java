@@ -0,0 +1,292 @@
+package com.yotouch.core.runtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import com.yotouch.core.Consts;
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.entity.EntityImpl;
+import com.yotouch.core.entity.MetaEntity;
+import com.yotouch.core.entity.MetaField;
+
+/**
+ * Second level cache of DbSession.getEntity, enabled per MetaEntity with `cache: local` or `cache: redis` in the entities yaml.
+ * Entries are value snapshots, every hit returns a new Entity. DbSession only fills it outside transactions and evicts
+ * written rows again after commit.
+ * The local tier is bounded by size and TTL; with redis, the local TTL also bounds how stale another node can be.
+ * Redis keys carry a generation per MetaEntity, evictAll bumps it instead of looking for the keys, the old ones expire by themselves.
+ */
+@Component
+public class EntityCache {
+
+    static final private Logger logger = LoggerFactory.getLogger(EntityCache.class);
+
+    @Value("${yotouch.entity.cache.maxSize:10000}")
+    private long maxSize;
+
+    @Value("${yotouch.entity.cache.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    @Value("${yotouch.entity.cache.redisTtlSeconds:3600}")
+    private long redisTtlSeconds;
+
+    @Autowired(required = false)
+    private RedisTemplate<String, String> redisTemplate;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private Cache<String, Map<String, Object>> localCache;
+
+    // entity name -> redis key generation, read again after the local TTL so other nodes' bumps are seen
+    private Cache<String, Long> generations;
+
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong redisMisses = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        this.localCache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+
+        this.generations = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static String key(String entityName, String uuid) {
+        return "Entity:" + entityName + ":" + uuid;
+    }
+
+    private static String generationKey(String entityName) {
+        return "EntityGen:" + entityName;
+    }
+
+    /**
+     * @return the redis key of the entity, null when the generation can't be read from redis
+     */
+    private String redisKey(MetaEntity me, String uuid) {
+        String name = me.getName();
+        try {
+            long gen = this.generations.get(name, () -> {
+                String v = this.redisTemplate.opsForValue().get(generationKey(name));
+                return v == null ? 0L : Long.parseLong(v);
+            });
+            return "Entity:" + name + ":" + gen + ":" + uuid;
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            logger.warn("Get key generation of " + name + " from redis error", ex);
+            return null;
+        }
+    }
+
+    private boolean isLocal(MetaEntity me) {
+        String mode = me.getCacheMode();
+        return Consts.ENTITY_CACHE_LOCAL.equalsIgnoreCase(mode) || Consts.ENTITY_CACHE_REDIS.equalsIgnoreCase(mode);
+    }
+
+    private boolean isRedis(MetaEntity me) {
+        return this.redisTemplate != null && Consts.ENTITY_CACHE_REDIS.equalsIgnoreCase(me.getCacheMode());
+    }
+
+    public Entity get(MetaEntity me, String uuid) {
+        if (!isLocal(me)) {
+            return null;
+        }
+
+        String key = key(me.getName(), uuid);
+        Map<String, Object> values = this.localCache.getIfPresent(key);
+
+        if (values == null && isRedis(me)) {
+            values = this.getRedis(this.redisKey(me, uuid));
+            if (values != null) {
+                values = normalize(me, values);
+                this.localCache.put(key, values);
+            }
+        }
+
+        if (values == null) {
+            return null;
+        }
+
+        return EntityImpl.fromSnapshot(me, copy(values));
+    }
+
+    public void put(Entity e) {
+        MetaEntity me = e.getMetaEntity();
+        if (!isLocal(me)) {
+            return;
+        }
+
+        Map<String, Object> values = copy(((EntityImpl) e).snapshot());
+        String key = key(me.getName(), e.getUuid());
+        this.localCache.put(key, values);
+
+        String redisKey = isRedis(me) ? this.redisKey(me, e.getUuid()) : null;
+        if (redisKey != null) {
+            try {
+                this.redisTemplate.opsForValue().set(redisKey, mapper.writeValueAsString(values), redisTtlSeconds, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                logger.warn("Put " + redisKey + " into redis error", ex);
+            }
+        }
+    }
+
+    public void evict(MetaEntity me, String uuid) {
+        if (!isLocal(me)) {
+            return;
+        }
+
+        String key = key(me.getName(), uuid);
+        this.localCache.invalidate(key);
+
+        String redisKey = isRedis(me) ? this.redisKey(me, uuid) : null;
+        if (redisKey != null) {
+            // the row is already written, a redis outage must not fail the save
+            try {
+                this.redisTemplate.delete(redisKey);
+            } catch (Exception ex) {
+                logger.warn("Delete " + redisKey + " from redis error", ex);
+            }
+        }
+    }
+
+    /**
+     * Drop every entry of the MetaEntity, for deletes by a raw where clause
+     */
+    public void evictAll(MetaEntity me) {
+        if (!isLocal(me)) {
+            return;
+        }
+
+        String prefix = key(me.getName(), "");
+        List<String> keys = new ArrayList<>();
+        for (String key : this.localCache.asMap().keySet()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        this.localCache.invalidateAll(keys);
+
+        if (isRedis(me)) {
+            String name = me.getName();
+            try {
+                Long gen = this.redisTemplate.opsForValue().increment(generationKey(name), 1);
+                if (gen != null) {
+                    this.generations.put(name, gen);
+                } else {
+                    this.generations.invalidate(name);
+                }
+            } catch (Exception ex) {
+                this.generations.invalidate(name);
+                logger.warn("Bump key generation of " + name + " in redis error", ex);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        CacheStats cs = this.localCache.stats();
+
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", this.localCache.size());
+        m.put("hitCount", cs.hitCount());
+        m.put("missCount", cs.missCount());
+        m.put("evictionCount", cs.evictionCount());
+        m.put("hitRate", cs.hitRate());
+        m.put("redisHitCount", redisHits.get());
+        m.put("redisMissCount", redisMisses.get());
+        return m;
+    }
+
+    private Map<String, Object> getRedis(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        try {
+            String json = this.redisTemplate.opsForValue().get(key);
+            if (json == null) {
+                redisMisses.incrementAndGet();
+                return null;
+            }
+
+            redisHits.incrementAndGet();
+            return mapper.readValue(json, new TypeReference<Map<String, Object>>() {});
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("Get " + key + " from redis error", ex);
+            return null;
+        }
+    }
+
+    /**
+     * JSON gives back Integer for small longs and base64 for binary, turn them back into the field types
+     */
+    private static Map<String, Object> normalize(MetaEntity me, Map<String, Object> values) {
+        Map<String, Object> m = new HashMap<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            MetaField<?> mf = me.getMetaField(entry.getKey());
+            if (mf == null) {
+                continue;
+            }
+
+            Object v = entry.getValue();
+            String dataType = mf.getDataType();
+            if (v instanceof Number) {
+                Number n = (Number) v;
+                if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(dataType)) {
+                    v = n.intValue();
+                } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(dataType)
+                        || Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(dataType)) {
+                    v = n.longValue();
+                } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(dataType)) {
+                    v = n.doubleValue();
+                }
+            } else if (v instanceof String && Consts.META_FIELD_DATA_TYPE_BINARY.equalsIgnoreCase(dataType)) {
+                v = Base64.getDecoder().decode((String) v);
+            }
+            m.put(entry.getKey(), v);
+        }
+        return m;
+    }
+
+    /**
+     * Cached snapshots are never handed out, the mutable values are copied on the way in and out
+     */
+    private static Map<String, Object> copy(Map<String, Object> values) {
+        Map<String, Object> m = new HashMap<>(values);
+        for (Map.Entry<String, Object> entry : m.entrySet()) {
+            Object v = entry.getValue();
+            if (v instanceof byte[]) {
+                entry.setValue(((byte[]) v).clone());
+            } else if (v instanceof List) {
+                entry.setValue(new ArrayList<>((List<?>) v));
+            }
+        }
+        return m;
+    }
+
+}
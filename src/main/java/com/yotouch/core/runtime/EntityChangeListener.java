@@ -0,0 +1,21 @@
+package com.yotouch.core.runtime;
+
+import com.yotouch.core.entity.MetaEntity;
+
+/**
+ * Spring beans implementing this are told by DbSession when stored rows change,
+ * for caches kept outside of DbSession. Called after the statement, on the thread of the change.
+ */
+public interface EntityChangeListener {
+
+    /**
+     * The row was inserted, updated, increased or deleted
+     */
+    void entityChanged(MetaEntity me, String uuid);
+
+    /**
+     * Rows picked by a raw where clause were updated or deleted
+     */
+    void entitiesChanged(MetaEntity me);
+
+}
@@ -0,0 +1,62 @@
+package com.yotouch.core.runtime;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.entity.MetaEntity;
+
+/**
+ * Entities loaded inside one unit of work (a web request or a transaction), keyed by MetaEntity name and uuid.
+ * It lives in a ThreadLocal of DbSessionImpl and is never shared between threads.
+ */
+class IdentityMap {
+
+    private final Map<String, Entity> entities = new HashMap<>();
+
+    private int depth;
+
+    void enter() {
+        depth++;
+    }
+
+    /**
+     * @return true when the outermost unit of work ends
+     */
+    boolean exit() {
+        depth--;
+        return depth <= 0;
+    }
+
+    Entity get(MetaEntity me, String uuid) {
+        return entities.get(key(me.getName(), uuid));
+    }
+
+    void put(Entity e) {
+        entities.put(key(e.getMetaEntity().getName(), e.getUuid()), e);
+    }
+
+    void evict(MetaEntity me, String uuid) {
+        entities.remove(key(me.getName(), uuid));
+    }
+
+    void evictAll(MetaEntity me) {
+        String prefix = me.getName() + ":";
+        Iterator<String> it = entities.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        entities.clear();
+    }
+
+    private static String key(String entityName, String uuid) {
+        return entityName + ":" + uuid;
+    }
+
+}
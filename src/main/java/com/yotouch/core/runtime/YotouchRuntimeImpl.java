@@ -7,11 +7,11 @@ import org.springframework.stereotype.Component;
 public class YotouchRuntimeImpl implements YotouchRuntime {
 
     @Autowired
-    private DbSession dbSession;
+    private DbSessionImpl dbSession;
 
     @Override
     public DbSession createDbSession() {
-        return this.dbSession;
+        return this.dbSession.newSession();
     }
 
 
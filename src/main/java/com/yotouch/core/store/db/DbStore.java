@@ -2,6 +2,7 @@ package com.yotouch.core.store.db;
 
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import com.yotouch.core.entity.Entity;
 import com.yotouch.core.entity.EntityRowMapper;
@@ -22,12 +23,37 @@ public interface DbStore {
 
     void alterTable(MetaEntity me);
 
+    void invalidateColumnCache();
+
     String insert(MetaEntity me, List<FieldValue<?>> fvs);
 
     String insert(MetaEntity me, List<FieldValue<?>> fvs, String uuid);
 
+    /**
+     * INSERT IGNORE, for rows guarded by a unique key
+     * @return false when the row was not inserted because the key is taken
+     */
+    boolean insertIgnore(MetaEntity me, List<FieldValue<?>> fvs, String uuid);
+
+    /**
+     * Add the unique key to the table if it has no index with this name. STRING columns are indexed on their first
+     * 191 characters, the most utf8mb4 allows on every InnoDB row format.
+     * @return false when the key can't be added, e.g. rows already break it
+     */
+    boolean ensureUniqueKey(MetaEntity me, String keyName, String... fields);
+
     void update(MetaEntity me, String uuid, List<FieldValue<?>> fvs);
 
+    /**
+     * JDBC batch INSERT, every row must already hold its uuid
+     */
+    void batchInsert(MetaEntity me, List<List<FieldValue<?>>> rows, int batchSize);
+
+    /**
+     * JDBC batch UPDATE, rows are grouped by their set of changed columns
+     */
+    void batchUpdate(MetaEntity me, List<String> uuids, List<List<FieldValue<?>>> rows, int batchSize);
+
     List<Entity> query(MetaEntity me, String uuid, EntityRowMapper mapper);
 
     List<Entity> querySql(MetaEntity me, String where, Object[] args, EntityRowMapper mapper);
@@ -36,9 +62,35 @@ public interface DbStore {
 
     List<Entity> query(MetaEntity me, Query query, EntityRowMapper entityRowMapper);
 
-    void increase(MetaEntity me, String uuid, String field, int amount);
+    /**
+     * Rows mapped one at a time from a streaming ResultSet, which holds its connection until the stream is closed
+     * or read to the end. Multi reference fields are not loaded.
+     */
+    Stream<Entity> stream(MetaEntity me, String where, Object[] args, EntityRowMapper mapper);
+
+    /**
+     * Add amount to the column and read the result back on the same connection, without another SELECT of the row.
+     * @param alsoSet other fields written by the same UPDATE, field name -> value, may be null
+     * @return the new value, null when there is no row with the uuid
+     */
+    Number increase(MetaEntity me, String uuid, String field, Number amount, Map<String, Object> alsoSet);
+
+    /**
+     * Add the deltas, uuid -> amount, to the column with JDBC batches
+     */
+    void increaseAll(MetaEntity me, String field, Map<String, ? extends Number> deltas, Map<String, Object> alsoSet, int batchSize);
+
+    /**
+     * Row count the optimizer expects for the where clause, from EXPLAIN and the table statistics, not exact
+     */
+    long estimateCount(MetaEntity me, String where, Object[] args);
 
     void deleteRawSql(MetaEntity me, String where, Object[] args);
 
+    /**
+     * UPDATE table SET set WHERE where, args are for both clauses in order
+     */
+    int updateRawSql(MetaEntity me, String set, String where, Object[] args);
+
 
 }
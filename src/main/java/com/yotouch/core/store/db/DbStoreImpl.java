@@ -1,21 +1,37 @@
 package com.yotouch.core.store.db;
 
-import java.io.ByteArrayInputStream;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.sql.DataSource;
 
 import com.yotouch.core.entity.query.Query;
 import com.yotouch.core.entity.query.QueryField;
+import com.yotouch.core.exception.NoSuchMetaFieldException;
 import com.yotouch.core.exception.YotouchException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
@@ -36,27 +52,89 @@ public class DbStoreImpl implements DbStore {
     @Autowired
     private JdbcTemplate jdbcTpl;
 
-    private List<Map<String, String>> descTable(String name) {
+    // Integer.MIN_VALUE makes MySQL Connector/J stream rows one by one,
+    // with useCursorFetch=true in the url a positive size fetches that many rows per round trip
+    @Value("${yotouch.db.streamFetchSize:" + Integer.MIN_VALUE + "}")
+    private int streamFetchSize;
 
-        String sql = "DESCRIBE " + name;
+    // tableName => columns ordered by ordinal position, loaded from information_schema
+    private final ConcurrentMap<String, List<TableColumn>> columnCache = new ConcurrentHashMap<>();
 
-        List<Map<String, String>> values = this.jdbcTpl.query(sql, new RowMapper<Map<String, String>>() {
+    private volatile boolean columnCacheLoaded = false;
 
-            @Override
-            public Map<String, String> mapRow(ResultSet rs, int rowNum) throws SQLException {
+    private List<TableColumn> getTableColumns(String tableName) {
+        List<TableColumn> columns = this.columnCache.get(tableName);
+        if (columns != null) {
+            return columns;
+        }
 
-                Map<String, String> fields = new HashMap<>();
+        if (!this.columnCacheLoaded) {
+            this.loadAllTableColumns();
+            columns = this.columnCache.get(tableName);
+            if (columns != null) {
+                return columns;
+            }
+        }
 
-                for (String f : new String[] { "Field", "Type", "Null", "Key", "Default", "Extra" }) {
-                    fields.put(f, rs.getString(f));
-                }
+        String sql = "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE, ORDINAL_POSITION FROM information_schema.COLUMNS "
+                + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? ORDER BY ORDINAL_POSITION";
 
-                return fields;
-            }
+        Map<String, List<TableColumn>> loaded = this.queryTableColumns(sql, new Object[]{tableName});
+        columns = loaded.get(tableName);
+        if (columns == null) {
+            // Table does not exist (yet), do not cache it
+            return new ArrayList<>();
+        }
+
+        this.columnCache.put(tableName, columns);
+        return columns;
+    }
+
+    private synchronized void loadAllTableColumns() {
+        if (this.columnCacheLoaded) {
+            return;
+        }
 
+        String sql = "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE, ORDINAL_POSITION FROM information_schema.COLUMNS "
+                + "WHERE TABLE_SCHEMA = DATABASE() ORDER BY TABLE_NAME, ORDINAL_POSITION";
+
+        Map<String, List<TableColumn>> loaded = this.queryTableColumns(sql, new Object[]{});
+        for (Map.Entry<String, List<TableColumn>> entry : loaded.entrySet()) {
+            this.columnCache.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+
+        logger.info("Load columns of " + loaded.size() + " tables from information_schema");
+
+        this.columnCacheLoaded = true;
+    }
+
+    private Map<String, List<TableColumn>> queryTableColumns(String sql, Object[] args) {
+        Map<String, List<TableColumn>> tables = new HashMap<>();
+
+        this.jdbcTpl.query(sql, args, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                String tableName = rs.getString(1);
+                TableColumn column = new TableColumn(rs.getString(2), rs.getString(3), rs.getInt(4));
+                tables.computeIfAbsent(tableName, k -> new ArrayList<>()).add(column);
+            }
         });
 
-        return values;
+        Map<String, List<TableColumn>> result = new HashMap<>();
+        for (Map.Entry<String, List<TableColumn>> entry : tables.entrySet()) {
+            result.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        return result;
+    }
+
+    private void invalidateTableColumns(String tableName) {
+        this.columnCache.remove(tableName);
+    }
+
+    @Override
+    public void invalidateColumnCache() {
+        this.columnCache.clear();
+        this.columnCacheLoaded = false;
     }
 
     @Override
@@ -76,7 +154,7 @@ public class DbStoreImpl implements DbStore {
             fullSql += " WHERE " + sql;
         }
 
-        List<Map<String, String>> fields = this.descTable(mei.getTableName());
+        List<TableColumn> columns = this.getTableColumns(mei.getTableName());
 
         List<Map<String, Object>> rows = this.jdbcTpl.query(fullSql, args, new RowMapper<Map<String, Object>>() {
 
@@ -85,11 +163,10 @@ public class DbStoreImpl implements DbStore {
 
                 Map<String, Object> row = new HashMap<>();
 
-                for (Map<String, String> f : fields) {
-                    String fieldName = f.get("Field");
-                    String value = rs.getString(fieldName);
+                for (TableColumn column : columns) {
+                    String value = rs.getString(column.getOrdinal());
 
-                    row.put(fieldName, value);
+                    row.put(column.getName(), value);
                 }
 
                 return row;
@@ -173,6 +250,8 @@ public class DbStoreImpl implements DbStore {
 
         logger.info("Create table " + me.getName() + " sql: " + sql);
         this.jdbcTpl.execute(sql);
+
+        this.invalidateTableColumns(mei.getTableName());
     }
 
     @Override
@@ -180,11 +259,11 @@ public class DbStoreImpl implements DbStore {
         MetaEntityImpl mei = (MetaEntityImpl) me;
         
         String tableName = mei.getTableName();
-        List<Map<String, String>> fields = this.descTable(tableName);
+        List<TableColumn> columns = this.getTableColumns(tableName);
 
         List<String> fieldNames = new ArrayList<>();
-        for (Map<String, String> m: fields) {
-            fieldNames.add(m.get("Field"));
+        for (TableColumn column: columns) {
+            fieldNames.add(column.getName());
         }
         
         String sql = "ALTER TABLE " + tableName + " ";
@@ -220,77 +299,71 @@ public class DbStoreImpl implements DbStore {
             
             logger.info("ALTER TABLE sql " + sql);
             this.jdbcTpl.execute(sql);
+
+            this.invalidateTableColumns(tableName);
         } else {
             logger.info("No new fields for " + me.getName());
         }
         
     }
     
-    private void setPsValue(PreparedStatement ps, int idx, FieldValue<?> fv) throws SQLException {
-        MetaField<?> mf = fv.getField();
-        
-        Object value = fv.getValue();
-        
-        logger.debug("Set ps value idx " + idx + " name " + fv.getField() + " value " + value + " value type " + (value == null ? "null" : value.getClass()));
-        
-        if (Consts.META_FIELD_DATA_TYPE_STRING.equals(mf.getDataType())
-                || Consts.META_FIELD_DATA_TYPE_TEXT.equalsIgnoreCase(mf.getDataType())
-                ) {
-            ps.setString(idx, (String) fv.getValue());
-        } else if (Consts.META_FIELD_DATA_TYPE_UUID.equalsIgnoreCase(mf.getDataType())) {
-            
-            String s = (String) fv.getValue();
-            if (s == null) {
-                s = "";
-            }
-            ps.setString(idx, s);
-            
-        } else if (Consts.META_FIELD_DATA_TYPE_DATETIME.equals(mf.getDataType())) {
-            Calendar cal = (Calendar) fv.getValue();
-            if (cal == null) {
-                cal = (Calendar) fv.getField().getDefaultValue();
-            }
+    @Override
+    public boolean insertIgnore(MetaEntity me, List<FieldValue<?>> fvs, String uuid) {
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
 
-            if (cal != null) {
-                ps.setTimestamp(idx, new java.sql.Timestamp(cal.getTimeInMillis()));
-            } else {
-                ps.setObject(idx, null);
-            }
-        } else if (Consts.META_FIELD_DATA_TYPE_INT.equals(mf.getDataType())) {
-            if (fv.getValue() == null) {
-                ps.setObject(idx, null);
-            } else {
-                ps.setInt(idx, (Integer) fv.getValue());
-            }
-        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equals(mf.getDataType())) {
-            if (fv.getValue() == null) {
-                ps.setObject(idx, null);
-            } else {
-                ps.setLong(idx, (Long) fv.getValue());
+        String sql = "INSERT IGNORE" + tpl.getInsertSql().substring("INSERT".length());
+        FieldValue<?>[] values = tpl.toColumnValues(fvs);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Do INSERT IGNORE " + sql + " uuid " + uuid);
+        }
+
+        int rows = this.jdbcTpl.update(sql, ps -> {
+            ps.setString(1, uuid);
+            for (int i = 1; i < values.length; i++) {
+                tpl.getBinder(i).bind(ps, i + 1, values[i]);
             }
-        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equals(mf.getDataType())) {
-            Double v = (Double) fv.getValue();
-            if (v == null) {
-                ps.setObject(idx, null);
-            } else {
-                ps.setDouble(idx, v); 
+        });
+        return rows > 0;
+    }
+
+    @Override
+    public boolean ensureUniqueKey(MetaEntity me, String keyName, String... fields) {
+        String tableName = ((MetaEntityImpl) me).getTableName();
+
+        Integer found = this.jdbcTpl.queryForObject(
+                "SELECT COUNT(*) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ?",
+                Integer.class, tableName, keyName);
+        if (found != null && found > 0) {
+            return true;
+        }
+
+        StringBuilder sql = new StringBuilder("ALTER TABLE ").append(tableName)
+                .append(" ADD UNIQUE KEY ").append(keyName).append(" (");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
             }
-        } else if (Consts.META_FIELD_DATA_TYPE_BINARY.equals(mf.getDataType())) {
-            ps.setBlob(idx, new ByteArrayInputStream((byte[]) fv.getValue()));
-        } else if (Consts.META_FIELD_DATA_TYPE_BOOLEAN.equalsIgnoreCase(mf.getDataType())) {
-            
-            Boolean b = (Boolean) value;
-            if (b == null) {
-                ps.setObject(idx, null);
-            } else {
-                ps.setInt(idx, b ? 1 : 0);
+
+            MetaField<?> mf = me.getMetaField(fields[i]);
+            String column = mf.isSingleReference() ? mf.getName() + "Uuid" : mf.getName();
+            sql.append(column);
+            if (Consts.META_FIELD_DATA_TYPE_STRING.equalsIgnoreCase(mf.getDataType())) {
+                sql.append("(191)");
             }
-            
-            
+        }
+        sql.append(")");
+
+        try {
+            logger.info("Add unique key " + sql);
+            this.jdbcTpl.execute(sql.toString());
+            return true;
+        } catch (DataAccessException e) {
+            logger.warn("Add unique key " + keyName + " to " + tableName + " error, remove the duplicate rows and restart", e);
+            return false;
         }
     }
 
-
     @Override
     public String insert(MetaEntity me, List<FieldValue<?>> fvs) {
         String uuid = UUID.randomUUID().toString();
@@ -300,39 +373,19 @@ public class DbStoreImpl implements DbStore {
     @Override
     public String insert(MetaEntity me, List<FieldValue<?>> fvs, String uuid) {
 
-        MetaEntityImpl mei = (MetaEntityImpl) me;
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
         
         if (StringUtils.isEmpty(uuid)) {
             uuid = UUID.randomUUID().toString();
         }
         
-        String sql = "INSERT INTO " + mei.getTableName() + " (uuid ";
+        String sql = tpl.getInsertSql();
+        FieldValue<?>[] values = tpl.toColumnValues(fvs);
         
-        String qStr = "?";
-        
-        for (int i = 0; i < fvs.size(); i++) {
-            FieldValue<?> fv = fvs.get(i);
-            
-            MetaField<?> mf = fv.getField();
-            
-            String fname = mf.getName();
-            
-            if (fname.equals("uuid") || mf.isMultiReference()) {
-                continue;
-            }
-            
-            if (mf.isSingleReference()) {
-                fname = fname + "Uuid";
-            }
-            
-            sql += " , " + fname;
-            qStr += " , ?";
+        if (logger.isDebugEnabled()) {
+            logger.debug("Do INSERT " + sql);
         }
         
-        sql += ") VALUE ( "+qStr+")";
-        
-        logger.debug("Do INSERT " + sql);
-        
         final String theUuid = uuid;
         this.jdbcTpl.update(sql, new PreparedStatementSetter() {
 
@@ -340,20 +393,15 @@ public class DbStoreImpl implements DbStore {
             public void setValues(PreparedStatement ps) throws SQLException {
                 ps.setString(1,  theUuid);
                 
-                int pos = 2;
-                for (int i = 0; i < fvs.size(); i++) {
-                    FieldValue<?> fv = fvs.get(i);
-                    MetaField<?> mf = fv.getField();
-                    if (mf.getName().equals("uuid") || mf.isMultiReference()) {
-                        continue;
-                    }
-                    setPsValue(ps, pos, fv);
-                    pos += 1;
+                for (int i = 1; i < values.length; i++) {
+                    tpl.getBinder(i).bind(ps, i + 1, values[i]);
                 }
             }
         });
 
-        logger.debug("INSERT INTO " + mei.getTableName() + " uuid " + uuid);
+        if (logger.isDebugEnabled()) {
+            logger.debug("INSERT INTO " + tpl.getTableName() + " uuid " + uuid);
+        }
 
         return uuid;        
     }
@@ -361,65 +409,119 @@ public class DbStoreImpl implements DbStore {
     @Override
     public void update(MetaEntity me, String uuid, List<FieldValue<?>> fvs) {
         
-        MetaEntityImpl mei = (MetaEntityImpl) me;
-        
-        String sql = "UPDATE " + mei.getTableName() + " SET ";
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
         
-        boolean first = true;
-        List<FieldValue<?>> valueFields = new ArrayList<>();  
-        for (FieldValue<?> fv: fvs) {
-            if (fv.isChanged()) {
-                MetaField<?> mf = fv.getField();
-                if (mf.getName().equals("uuid") || mf.isMultiReference()) {
-                    continue;
-                }
-                if (!first) {
-                    sql += ",";
-                }
-                
-                String fname = mf.getName();
-                if (mf.isSingleReference()) {
-                    fname += "Uuid";
-                }
-                
-                sql += fname + " = ?";
-                valueFields.add(fv);
-                first = false;
+        FieldValue<?>[] values = tpl.toColumnValues(fvs);
+        BitSet changed = new BitSet(values.length);
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] != null && values[i].isChanged()) {
+                changed.set(i);
             }
         }
         
-        if (valueFields.isEmpty()) {
+        if (changed.isEmpty()) {
             return;
         }
         
-        sql += " WHERE uuid = ?";
+        String sql = tpl.getUpdateSql(changed);
         
-        logger.debug("Yotouch Update SQL " + sql);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Yotouch Update SQL " + sql);
+        }
         
         this.jdbcTpl.update(sql, new PreparedStatementSetter() {
 
             @Override
             public void setValues(PreparedStatement ps) throws SQLException {
                 
-                for (int i = 0; i < valueFields.size(); i++) {
-                    FieldValue<?> fv = valueFields.get(i);
-                    int idx = i + 1;
-                    setPsValue(ps, idx, fv);
+                int idx = 1;
+                for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                    tpl.getBinder(i).bind(ps, idx, values[i]);
+                    idx += 1;
                 }                
-                ps.setString(valueFields.size() + 1, uuid);
+                ps.setString(idx, uuid);
             }
 
         });
     }
 
+    @Override
+    public void batchInsert(MetaEntity me, List<List<FieldValue<?>>> rows, int batchSize) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        List<FieldValue<?>[]> batch = new ArrayList<>(rows.size());
+        for (List<FieldValue<?>> fvs : rows) {
+            batch.add(tpl.toColumnValues(fvs));
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Do batch INSERT " + batch.size() + " rows " + tpl.getInsertSql());
+        }
+
+        this.jdbcTpl.batchUpdate(tpl.getInsertSql(), batch, batchSize, (ps, values) -> {
+            for (int i = 0; i < values.length; i++) {
+                tpl.getBinder(i).bind(ps, i + 1, values[i]);
+            }
+        });
+    }
+
+    @Override
+    public void batchUpdate(MetaEntity me, List<String> uuids, List<List<FieldValue<?>>> rows, int batchSize) {
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        // changed columns -> positions of the rows
+        Map<BitSet, List<Integer>> groups = new LinkedHashMap<>();
+        List<FieldValue<?>[]> batch = new ArrayList<>(rows.size());
+        for (int r = 0; r < rows.size(); r++) {
+            FieldValue<?>[] values = tpl.toColumnValues(rows.get(r));
+            batch.add(values);
+
+            BitSet changed = new BitSet(values.length);
+            for (int i = 1; i < values.length; i++) {
+                if (values[i] != null && values[i].isChanged()) {
+                    changed.set(i);
+                }
+            }
+
+            if (!changed.isEmpty()) {
+                groups.computeIfAbsent(changed, k -> new ArrayList<>()).add(r);
+            }
+        }
+
+        for (Map.Entry<BitSet, List<Integer>> group : groups.entrySet()) {
+            BitSet changed = group.getKey();
+            String sql = tpl.getUpdateSql(changed);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Do batch UPDATE " + group.getValue().size() + " rows " + sql);
+            }
+
+            this.jdbcTpl.batchUpdate(sql, group.getValue(), batchSize, (ps, r) -> {
+                FieldValue<?>[] values = batch.get(r);
+                int idx = 1;
+                for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                    tpl.getBinder(i).bind(ps, idx, values[i]);
+                    idx += 1;
+                }
+                ps.setString(idx, uuids.get(r));
+            });
+        }
+    }
+
     @Override
     public List<Entity> query(MetaEntity me, String uuid, EntityRowMapper mapper) {
-        MetaEntityImpl mei = (MetaEntityImpl) me;
-        String sql = "SELECT * FROM " + mei.getTableName() + " WHERE uuid=?";
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+        String sql = tpl.getSelectByUuidSql();
         Object[] args = new Object[]{uuid};
-        logger.debug("Yotouch SQL " + sql + " args [" + StringUtils.arrayToCommaDelimitedString(args) + "]");
+        if (logger.isDebugEnabled()) {
+            logger.debug("Yotouch SQL " + sql + " args [" + StringUtils.arrayToCommaDelimitedString(args) + "]");
+        }
         List<Entity> el = this.jdbcTpl.query(sql, args, mapper);
-        return el;
+        return mapper.loadMultiReferences(el);
     }
 
     @Override
@@ -429,56 +531,142 @@ public class DbStoreImpl implements DbStore {
 
     @Override
     public List<Entity> querySql(MetaEntity me, List<QueryField> fields, String where, Object[] args, EntityRowMapper mapper) {
-        MetaEntityImpl mei = (MetaEntityImpl) me;
-        String sql = "SELECT ";
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        StringBuilder sql;
         if (fields == null || fields.isEmpty()) {
-            sql += " * ";
+            sql = new StringBuilder(tpl.getSelectSql());
         } else {
-            for (int i = 0; i < fields.size(); i++) {
-                if (i > 0) {
-                    sql += " , ";
-                }
-
-                QueryField qf = fields.get(i);
-                sql += qf.asSql();
-            }
+            sql = new StringBuilder("SELECT ");
+            appendQueryFields(sql, fields);
+            sql.append(" FROM ").append(tpl.getTableName());
 
             mapper.setFields(fields);
         }
 
-        sql += " FROM " + mei.getTableName();
         if (!StringUtils.isEmpty(where)) {
-            sql += " WHERE " + where;
-            return this.jdbcTpl.query(sql, args, mapper);
+            sql.append(" WHERE ").append(where);
+            return mapper.loadMultiReferences(this.jdbcTpl.query(sql.toString(), args, mapper));
         } else {
-            return this.jdbcTpl.query(sql, mapper);
+            return mapper.loadMultiReferences(this.jdbcTpl.query(sql.toString(), mapper));
+        }
+    }
+
+    @Override
+    public Stream<Entity> stream(MetaEntity me, String where, Object[] args, EntityRowMapper mapper) {
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        String sql = tpl.getSelectSql();
+        if (!StringUtils.isEmpty(where)) {
+            sql += " WHERE " + where;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Yotouch STREAM SQL " + sql + " args [" + StringUtils.arrayToCommaDelimitedString(args) + "]");
+        }
+
+        // the connection of the current transaction if there is one, so it must not run other queries until the stream is done
+        DataSource ds = this.jdbcTpl.getDataSource();
+        Connection conn = DataSourceUtils.getConnection(ds);
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(this.streamFetchSize);
+            new ArgumentPreparedStatementSetter(args).setValues(ps);
+            rs = ps.executeQuery();
+        } catch (SQLException e) {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(ps);
+            DataSourceUtils.releaseConnection(conn, ds);
+            throw this.jdbcTpl.getExceptionTranslator().translate("Stream " + me.getName(), sql, e);
+        }
+
+        RowSpliterator rows = new RowSpliterator(sql, conn, ps, rs, mapper);
+        return StreamSupport.stream(rows, false).onClose(rows::close);
+    }
+
+    private class RowSpliterator extends Spliterators.AbstractSpliterator<Entity> {
+
+        private final String sql;
+        private final Connection conn;
+        private final PreparedStatement ps;
+        private final ResultSet rs;
+        private final EntityRowMapper mapper;
+
+        private int rowNum;
+        private boolean closed;
+
+        RowSpliterator(String sql, Connection conn, PreparedStatement ps, ResultSet rs, EntityRowMapper mapper) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            this.sql = sql;
+            this.conn = conn;
+            this.ps = ps;
+            this.rs = rs;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entity> action) {
+            if (this.closed) {
+                return false;
+            }
+
+            Entity e;
+            try {
+                if (!this.rs.next()) {
+                    this.close();
+                    return false;
+                }
+                e = this.mapper.mapRow(this.rs, this.rowNum++);
+            } catch (SQLException ex) {
+                this.close();
+                throw jdbcTpl.getExceptionTranslator().translate("Stream row " + this.rowNum, this.sql, ex);
+            }
+
+            action.accept(e);
+            return true;
+        }
+
+        void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+
+            // closing a streaming ResultSet early drains the rest of the rows from the server
+            JdbcUtils.closeResultSet(this.rs);
+            JdbcUtils.closeStatement(this.ps);
+            DataSourceUtils.releaseConnection(this.conn, jdbcTpl.getDataSource());
+        }
+    }
+
+    private void appendQueryFields(StringBuilder sql, List<QueryField> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                sql.append(" , ");
+            }
+
+            QueryField qf = fields.get(i);
+            sql.append(qf.asSql());
         }
     }
 
     @Override
     public List<Entity> query(MetaEntity me, Query query, EntityRowMapper mapper) {
-        MetaEntityImpl mei = (MetaEntityImpl) me;
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
 
         StringBuilder sql;
-        sql = new StringBuilder("SELECT ");
 
         if (query.getFields() == null || query.getFields().isEmpty()) {
-            sql.append(" * ");
+            sql = new StringBuilder(tpl.getSelectSql());
         } else {
-            for (int i = 0; i < query.getFields().size(); i++) {
-                if (i > 0) {
-                    sql.append(" , ");
-                }
-
-                QueryField qf = query.getFields().get(i);
-                sql.append(qf.asSql());
-            }
+            sql = new StringBuilder("SELECT ");
+            appendQueryFields(sql, query.getFields());
+            sql.append(" FROM ").append(tpl.getTableName());
 
             mapper.setFields(query.getFields());
         }
 
-        sql.append(" FROM ").append(mei.getTableName());
-
         if (!StringUtils.isEmpty(query.getWhere())) {
             sql.append(" WHERE ").append(query.getWhere());
         }
@@ -494,34 +682,138 @@ public class DbStoreImpl implements DbStore {
         }
 
         if (!StringUtils.isEmpty(query.getWhere())) {
-            return this.jdbcTpl.query(sql.toString(), query.getArgs(), mapper);
+            return mapper.loadMultiReferences(this.jdbcTpl.query(sql.toString(), query.getArgs(), mapper));
         } else {
-            return this.jdbcTpl.query(sql.toString(), mapper);
+            return mapper.loadMultiReferences(this.jdbcTpl.query(sql.toString(), mapper));
         }
     }
 
 
     @Override
-    public void increase(MetaEntity me, String uuid, String field, int amount) {
-        MetaEntityImpl mei = (MetaEntityImpl) me;
+    public Number increase(MetaEntity me, String uuid, String field, Number amount, Map<String, Object> alsoSet) {
+        if (me.getMetaField(field) == null) {
+            throw new NoSuchMetaFieldException(me, field);
+        }
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        // the session variable keeps the value written by this UPDATE, LAST_INSERT_ID(expr) would only carry unsigned integers.
+        // NULL columns of old rows count as 0, or the variable would stay NULL
+        List<Object> setArgs = new ArrayList<>();
+        String sql = "UPDATE " + tpl.getTableName() + " SET " + field + " = (@yt_increased := COALESCE(" + field + ", 0) + ?)"
+                + alsoSetSql(me, alsoSet, setArgs) + " WHERE uuid = ?";
+
+        return this.jdbcTpl.execute((ConnectionCallback<Number>) conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setObject(1, amount);
+                for (int i = 0; i < setArgs.size(); i++) {
+                    ps.setObject(i + 2, setArgs.get(i));
+                }
+                ps.setString(setArgs.size() + 2, uuid);
+                if (ps.executeUpdate() == 0) {
+                    return null;
+                }
+            }
+
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT @yt_increased")) {
+                return rs.next() ? (Number) rs.getObject(1) : null;
+            }
+        });
+    }
+
+    @Override
+    public void increaseAll(MetaEntity me, String field, Map<String, ? extends Number> deltas, Map<String, Object> alsoSet, int batchSize) {
+        if (me.getMetaField(field) == null) {
+            throw new NoSuchMetaFieldException(me, field);
+        }
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
 
-        String sql = "UPDATE " + mei.getTableName() + " SET " + field + " = " + field + " + ? WHERE uuid = ?";
+        List<Object> setArgs = new ArrayList<>();
+        String sql = "UPDATE " + tpl.getTableName() + " SET " + field + " = COALESCE(" + field + ", 0) + ?"
+                + alsoSetSql(me, alsoSet, setArgs) + " WHERE uuid = ?";
 
-        Object[] args = new Object[]{amount, uuid};
+        List<Map.Entry<String, ? extends Number>> batch = new ArrayList<>(deltas.entrySet());
+        this.jdbcTpl.batchUpdate(sql, batch, batchSize, (ps, delta) -> {
+            ps.setObject(1, delta.getValue());
+            for (int i = 0; i < setArgs.size(); i++) {
+                ps.setObject(i + 2, setArgs.get(i));
+            }
+            ps.setString(setArgs.size() + 2, delta.getKey());
+        });
+    }
 
-        this.jdbcTpl.update(sql, args);
+    /**
+     * ", col = ?" for each field of alsoSet, the values are added to args in the same order
+     */
+    private static String alsoSetSql(MetaEntity me, Map<String, Object> alsoSet, List<Object> args) {
+        if (alsoSet == null || alsoSet.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder sql = new StringBuilder();
+        for (Map.Entry<String, Object> entry : alsoSet.entrySet()) {
+            MetaField<?> mf = me.getMetaField(entry.getKey());
+            // the key becomes a column name in the SQL
+            if (mf == null) {
+                throw new NoSuchMetaFieldException(me, entry.getKey());
+            }
+            String column = mf.isSingleReference() ? mf.getName() + "Uuid" : mf.getName();
+            sql.append(", ").append(column).append(" = ?");
+
+            Object v = entry.getValue();
+            if (v instanceof Calendar) {
+                v = new java.sql.Timestamp(((Calendar) v).getTimeInMillis());
+            } else if (v instanceof Date && !(v instanceof java.sql.Timestamp)) {
+                v = new java.sql.Timestamp(((Date) v).getTime());
+            }
+            args.add(v);
+        }
+        return sql.toString();
+    }
+
+    @Override
+    public long estimateCount(MetaEntity me, String where, Object[] args) {
+
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        String sql = "EXPLAIN SELECT uuid FROM " + tpl.getTableName();
+        if (!StringUtils.isEmpty(where)) {
+            sql += " WHERE " + where;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Yotouch SQL " + sql + " args [" + StringUtils.arrayToCommaDelimitedString(args) + "]");
+        }
+
+        List<Map<String, Object>> plan = this.jdbcTpl.queryForList(sql, args == null ? new Object[0] : args);
+        if (plan.isEmpty()) {
+            return 0;
+        }
+
+        Object rows = plan.get(0).get("rows");
+        return rows instanceof Number ? ((Number) rows).longValue() : 0;
     }
 
     @Override
     public void deleteRawSql(MetaEntity me, String where, Object[] args) {
 
-        MetaEntityImpl mei = (MetaEntityImpl) me;
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
         
-        String sql = "DELETE FROM " + mei.getTableName() + " WHERE " + where;
+        String sql = "DELETE FROM " + tpl.getTableName() + " WHERE " + where;
         logger.debug("Yotouch DELETE SQL " + sql + " args [" + StringUtils.arrayToCommaDelimitedString(args) + "]");
         this.jdbcTpl.update(sql, args);
         
     }
+
+    @Override
+    public int updateRawSql(MetaEntity me, String set, String where, Object[] args) {
+
+        StatementTemplate tpl = ((MetaEntityImpl) me).getStatementTemplate();
+
+        String sql = "UPDATE " + tpl.getTableName() + " SET " + set + " WHERE " + where;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Yotouch UPDATE SQL " + sql + " args [" + StringUtils.arrayToCommaDelimitedString(args) + "]");
+        }
+        return this.jdbcTpl.update(sql, args);
+    }
 }
 
 
@@ -0,0 +1,122 @@
+package com.yotouch.core.store.db;
+
+import java.io.ByteArrayInputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+
+import com.yotouch.core.Consts;
+import com.yotouch.core.entity.MetaField;
+import com.yotouch.core.entity.fv.FieldValue;
+
+/**
+ * Writes a FieldValue into a PreparedStatement parameter, chosen once from the MetaField data type.
+ * A null FieldValue means the entity does not hold the field at all.
+ */
+public interface FieldBinder {
+
+    void bind(PreparedStatement ps, int idx, FieldValue<?> fv) throws SQLException;
+
+    FieldBinder STRING = (ps, idx, fv) -> {
+        ps.setString(idx, fv == null ? null : (String) fv.getValue());
+    };
+
+    FieldBinder UUID = (ps, idx, fv) -> {
+        String s = fv == null ? null : (String) fv.getValue();
+        ps.setString(idx, s == null ? "" : s); // column is NOT NULL DEFAULT ""
+    };
+
+    FieldBinder DATETIME = (ps, idx, fv) -> {
+        if (fv == null) {
+            ps.setObject(idx, null);
+            return;
+        }
+
+        Calendar cal = (Calendar) fv.getValue();
+        if (cal == null) {
+            cal = (Calendar) fv.getField().getDefaultValue();
+        }
+
+        if (cal != null) {
+            ps.setTimestamp(idx, new Timestamp(cal.getTimeInMillis()));
+        } else {
+            ps.setObject(idx, null);
+        }
+    };
+
+    FieldBinder INT = (ps, idx, fv) -> {
+        Integer v = fv == null ? null : (Integer) fv.getValue();
+        if (v == null) {
+            ps.setObject(idx, null);
+        } else {
+            ps.setInt(idx, v);
+        }
+    };
+
+    FieldBinder LONG = (ps, idx, fv) -> {
+        Long v = fv == null ? null : (Long) fv.getValue();
+        if (v == null) {
+            ps.setObject(idx, null);
+        } else {
+            ps.setLong(idx, v);
+        }
+    };
+
+    FieldBinder DOUBLE = (ps, idx, fv) -> {
+        Double v = fv == null ? null : (Double) fv.getValue();
+        if (v == null) {
+            ps.setObject(idx, null);
+        } else {
+            ps.setDouble(idx, v);
+        }
+    };
+
+    FieldBinder BINARY = (ps, idx, fv) -> {
+        byte[] v = fv == null ? null : (byte[]) fv.getValue();
+        if (v == null) {
+            ps.setObject(idx, null);
+        } else {
+            ps.setBlob(idx, new ByteArrayInputStream(v));
+        }
+    };
+
+    FieldBinder BOOLEAN = (ps, idx, fv) -> {
+        Boolean b = fv == null ? null : (Boolean) fv.getValue();
+        if (b == null) {
+            ps.setObject(idx, null);
+        } else {
+            ps.setInt(idx, b ? 1 : 0);
+        }
+    };
+
+    FieldBinder OBJECT = (ps, idx, fv) -> {
+        ps.setObject(idx, fv == null ? null : fv.getValue());
+    };
+
+    static FieldBinder of(MetaField<?> mf) {
+        String dataType = mf.getDataType();
+
+        if (Consts.META_FIELD_DATA_TYPE_STRING.equalsIgnoreCase(dataType)
+                || Consts.META_FIELD_DATA_TYPE_TEXT.equalsIgnoreCase(dataType)) {
+            return STRING;
+        } else if (Consts.META_FIELD_DATA_TYPE_UUID.equalsIgnoreCase(dataType)) {
+            return UUID;
+        } else if (Consts.META_FIELD_DATA_TYPE_DATETIME.equalsIgnoreCase(dataType)) {
+            return DATETIME;
+        } else if (Consts.META_FIELD_DATA_TYPE_INT.equalsIgnoreCase(dataType)) {
+            return INT;
+        } else if (Consts.META_FIELD_DATA_TYPE_LONG.equalsIgnoreCase(dataType)) {
+            return LONG;
+        } else if (Consts.META_FIELD_DATA_TYPE_DOUBLE.equalsIgnoreCase(dataType)) {
+            return DOUBLE;
+        } else if (Consts.META_FIELD_DATA_TYPE_BINARY.equalsIgnoreCase(dataType)) {
+            return BINARY;
+        } else if (Consts.META_FIELD_DATA_TYPE_BOOLEAN.equalsIgnoreCase(dataType)) {
+            return BOOLEAN;
+        }
+
+        return OBJECT;
+    }
+
+}
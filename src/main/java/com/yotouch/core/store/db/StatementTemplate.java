@@ -0,0 +1,173 @@
+package com.yotouch.core.store.db;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.yotouch.core.Consts;
+import com.yotouch.core.entity.MetaEntityImpl;
+import com.yotouch.core.entity.MetaField;
+import com.yotouch.core.entity.fv.FieldValue;
+
+/**
+ * Pre-built SQL of one MetaEntity, the column order is shared by INSERT, SELECT and the binding plan.
+ * Column 0 is always uuid. It is built by MetaEntityImpl and dropped whenever a field is added.
+ */
+public class StatementTemplate {
+
+    private final String tableName;
+
+    private final List<MetaField<?>> columnFields;
+    private final String[] columnNames;
+    private final FieldBinder[] binders;
+    private final Map<String, Integer> columnIndex;
+
+    private final String projection;
+    private final String selectSql;
+    private final String selectByUuidSql;
+    private final String insertSql;
+
+    private final ConcurrentMap<BitSet, String> updateSqls = new ConcurrentHashMap<>();
+
+    public StatementTemplate(MetaEntityImpl mei) {
+        this.tableName = mei.getTableName();
+
+        List<MetaField<?>> fields = new ArrayList<>();
+        MetaField<?> uuidField = null;
+        for (MetaField<?> mf : mei.getMetaFields()) {
+            if (mf.isMultiReference() || Consts.META_FIELD_DATA_TYPE_OBJECT.equals(mf.getDataType())) {
+                continue; // no column for them
+            }
+
+            if ("uuid".equals(mf.getName())) {
+                uuidField = mf;
+            } else {
+                fields.add(mf);
+            }
+        }
+        if (uuidField != null) {
+            fields.add(0, uuidField);
+        }
+
+        this.columnFields = Collections.unmodifiableList(fields);
+        this.columnNames = new String[fields.size()];
+        this.binders = new FieldBinder[fields.size()];
+        this.columnIndex = new HashMap<>();
+
+        StringBuilder cols = new StringBuilder();
+        StringBuilder qs = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            MetaField<?> mf = fields.get(i);
+
+            String cname = mf.getName();
+            if (mf.isSingleReference()) {
+                cname += "Uuid";
+            }
+
+            this.columnNames[i] = cname;
+            this.binders[i] = mf.getBinder();
+            this.columnIndex.put(mf.getName(), i);
+
+            if (i > 0) {
+                cols.append(", ");
+                qs.append(", ");
+            }
+            cols.append(cname);
+            qs.append("?");
+        }
+
+        this.projection = cols.toString();
+        this.selectSql = "SELECT " + this.projection + " FROM " + this.tableName;
+        this.selectByUuidSql = this.selectSql + " WHERE uuid = ?";
+        this.insertSql = "INSERT INTO " + this.tableName + " (" + this.projection + ") VALUES (" + qs + ")";
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public List<MetaField<?>> getColumnFields() {
+        return columnFields;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public String getColumnName(int idx) {
+        return columnNames[idx];
+    }
+
+    public FieldBinder getBinder(int idx) {
+        return binders[idx];
+    }
+
+    /**
+     * @return position of the column in projection, -1 if the field has no column
+     */
+    public int getColumnIndex(String fieldName) {
+        Integer idx = columnIndex.get(fieldName);
+        return idx == null ? -1 : idx;
+    }
+
+    public String getProjection() {
+        return projection;
+    }
+
+    public String getSelectSql() {
+        return selectSql;
+    }
+
+    public String getSelectByUuidSql() {
+        return selectByUuidSql;
+    }
+
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    /**
+     * Place the field values on their column position, fields without column are dropped
+     */
+    public FieldValue<?>[] toColumnValues(List<FieldValue<?>> fvs) {
+        FieldValue<?>[] values = new FieldValue<?>[columnNames.length];
+        for (FieldValue<?> fv : fvs) {
+            Integer idx = columnIndex.get(fv.getField().getName());
+            if (idx != null) {
+                values[idx] = fv;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * UPDATE sql for the given changed columns, cached per column set
+     */
+    public String getUpdateSql(BitSet columns) {
+        String sql = updateSqls.get(columns);
+        if (sql != null) {
+            return sql;
+        }
+
+        StringBuilder sb = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+        boolean first = true;
+        for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(columnNames[i]).append(" = ?");
+            first = false;
+        }
+        sb.append(" WHERE uuid = ?");
+
+        sql = sb.toString();
+        updateSqls.putIfAbsent((BitSet) columns.clone(), sql);
+        return sql;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.yotouch.core.store.db;
+
+import java.sql.Types;
+
+public class TableColumn {
+
+    private final String name;
+    private final String dataType;
+    private final int jdbcType;
+    private final int ordinal;
+
+    public TableColumn(String name, String dataType, int ordinal) {
+        this.name = name;
+        this.dataType = dataType;
+        this.jdbcType = toJdbcType(dataType);
+        this.ordinal = ordinal;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDataType() {
+        return dataType;
+    }
+
+    public int getJdbcType() {
+        return jdbcType;
+    }
+
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    static int toJdbcType(String dataType) {
+        if (dataType == null) {
+            return Types.OTHER;
+        }
+
+        switch (dataType.toLowerCase()) {
+            case "char":
+                return Types.CHAR;
+            case "varchar":
+                return Types.VARCHAR;
+            case "tinytext":
+            case "text":
+            case "mediumtext":
+            case "longtext":
+                return Types.LONGVARCHAR;
+            case "tinyint":
+                return Types.TINYINT;
+            case "smallint":
+                return Types.SMALLINT;
+            case "mediumint":
+            case "int":
+            case "integer":
+                return Types.INTEGER;
+            case "bigint":
+                return Types.BIGINT;
+            case "float":
+                return Types.REAL;
+            case "double":
+                return Types.DOUBLE;
+            case "decimal":
+                return Types.DECIMAL;
+            case "date":
+                return Types.DATE;
+            case "time":
+                return Types.TIME;
+            case "datetime":
+            case "timestamp":
+                return Types.TIMESTAMP;
+            case "tinyblob":
+            case "blob":
+            case "mediumblob":
+            case "longblob":
+                return Types.LONGVARBINARY;
+            case "binary":
+                return Types.BINARY;
+            case "varbinary":
+                return Types.VARBINARY;
+            case "bit":
+                return Types.BIT;
+            default:
+                return Types.OTHER;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TableColumn [name=" + name + ", dataType=" + dataType + ", ordinal=" + ordinal + "]";
+    }
+}
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,7 +34,11 @@ public class WorkflowManagerImpl implements WorkflowManager {
     @Autowired
     private Configure config;
     
-    Map<String, Workflow> wfMap;
+    // published workflows, replaced as a whole by initWorkflow
+    private volatile Map<String, Workflow> workflows = Collections.emptyMap();
+
+    // workflows being built, only touched under the initWorkflow lock
+    private Map<String, Workflow> loading;
     
     @Autowired
     private DbSession dbSession;
@@ -44,10 +49,25 @@ public class WorkflowManagerImpl implements WorkflowManager {
     
     @PostConstruct
     void initWorkflow() {
-        this.wfMap = new HashMap<>();
-        
-        this.loadFileWorkflow();
-        this.loadDbWorkflow();
+        this.publish(this.loadWorkflows());
+    }
+
+    /**
+     * Build the workflows without publishing them, so BizEntityManager can bind entities to them first
+     */
+    public synchronized Map<String, Workflow> loadWorkflows() {
+        this.loading = new HashMap<>();
+        try {
+            this.loadFileWorkflow();
+            this.loadDbWorkflow();
+            return Collections.unmodifiableMap(this.loading);
+        } finally {
+            this.loading = null;
+        }
+    }
+
+    public void publish(Map<String, Workflow> workflows) {
+        this.workflows = workflows;
     }
     
     private void loadFileWorkflow() {
@@ -153,7 +173,7 @@ public class WorkflowManagerImpl implements WorkflowManager {
                 wfAction.setWorkflow(wfi);
             }
 
-            this.wfMap.put(wf.v("name"), wfi);
+            this.loading.put(wf.v("name"), wfi);
         }
     }
 
@@ -265,12 +285,12 @@ public class WorkflowManagerImpl implements WorkflowManager {
         }
         
         
-        this.wfMap.put(name, wfi);        
+        this.loading.put(name, wfi);
     }
 
     @Override
     public Workflow getWorkflow(String name) {
-        return this.wfMap.get(name);
+        return this.workflows.get(name);
     }
 
 }
@@ -0,0 +1,134 @@
+package com.yotouch.test.core.entity;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.yotouch.base.PylonApplication;
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.runtime.DbSession;
+import com.yotouch.core.runtime.YotouchApplication;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PylonApplication.class)
+public class EntityHashTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(EntityHashTests.class);
+
+    private static final int COUNT = 100000;
+
+    @Autowired
+    private YotouchApplication ytApp;
+
+    @Test
+    public void testNewEntitiesAreDistinct() {
+        DbSession dbSession = ytApp.getRuntime().createDbSession();
+
+        Entity u1 = dbSession.newEntity("user");
+        Entity u2 = dbSession.newEntity("user");
+        assertNotEquals(u1, u2);
+        assertEquals(u1, u1);
+
+        Set<Entity> set = new HashSet<>();
+        set.add(u1);
+        set.add(u2);
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testEqualsFollowsUuid() {
+        DbSession dbSession = ytApp.getRuntime().createDbSession();
+        String uuid = UUID.randomUUID().toString();
+
+        Entity u1 = dbSession.newEntity("user");
+        u1.setValue("uuid", uuid);
+        Entity u2 = dbSession.newEntity("user");
+        u2.setValue("uuid", uuid);
+        assertEquals(u1, u2);
+        assertEquals(u1.hashCode(), u2.hashCode());
+
+        // a given "-uuid" is the same row once inserted
+        Entity given = dbSession.newEntity("user");
+        given.setValue("uuid", "-" + uuid);
+        assertEquals(u1, given);
+        assertEquals(u1.hashCode(), given.hashCode());
+
+        Entity attachment = dbSession.newEntity("attachment");
+        attachment.setValue("uuid", uuid);
+        assertNotEquals(u1, attachment);
+    }
+
+    @Test
+    public void testHashSurvivesSave() {
+        DbSession dbSession = ytApp.getRuntime().createDbSession();
+
+        List<Entity> users = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Entity u = dbSession.newEntity("user");
+            u.setValue("nickname", "hash" + i);
+            users.add(u);
+        }
+
+        Set<Entity> set = new HashSet<>(users);
+        int hash = users.get(0).hashCode();
+
+        dbSession.saveAll(users);
+
+        assertNotNull(users.get(0).getUuid());
+        assertEquals(hash, users.get(0).hashCode());
+        for (Entity u : users) {
+            assertTrue(set.contains(u));
+        }
+
+        Entity saved = dbSession.save(dbSession.newEntity("user"));
+        Entity loaded = dbSession.getEntity("user", saved.getUuid());
+        assertEquals(saved, loaded);
+        assertTrue(set.contains(dbSession.getEntity("user", users.get(1).getUuid())));
+    }
+
+    @Test
+    public void benchHashSet() {
+        DbSession dbSession = ytApp.getRuntime().createDbSession();
+
+        List<Entity> users = new ArrayList<>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            Entity u = dbSession.newEntity("user");
+            // half as loaded rows, half new entities which reserve their uuid on the first hashCode
+            if (i % 2 == 0) {
+                u.setValue("uuid", UUID.randomUUID().toString());
+            }
+            users.add(u);
+        }
+
+        // warm up
+        new HashSet<>(users);
+
+        long start = System.nanoTime();
+        Set<Entity> set = new HashSet<>(users);
+        int found = 0;
+        for (Entity u : users) {
+            if (set.contains(u)) {
+                found++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        assertEquals(COUNT, set.size());
+        assertEquals(COUNT, found);
+
+        logger.info("HashSet of " + COUNT + " entities: build and lookup in " + nanos / 1000000 + "ms, " + nanos / COUNT + "ns per entity");
+    }
+
+}
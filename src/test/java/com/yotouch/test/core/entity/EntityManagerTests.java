@@ -0,0 +1,67 @@
+package com.yotouch.test.core.entity;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.yotouch.base.PylonApplication;
+import com.yotouch.core.entity.EntityManager;
+import com.yotouch.core.entity.MetaEntity;
+import com.yotouch.core.exception.NoSuchMetaEntityException;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PylonApplication.class)
+public class EntityManagerTests {
+
+    private static final Logger logger = LoggerFactory.getLogger(EntityManagerTests.class);
+
+    private static final int ROUNDS = 1000;
+
+    @Autowired
+    private EntityManager entityMgr;
+
+    @Test
+    public void testGetMetaEntityByNameAndUuid() {
+        for (MetaEntity me : entityMgr.getMetaEntities()) {
+            assertSame(me, entityMgr.getMetaEntity(me.getName()));
+            assertSame(me, entityMgr.getMetaEntity(me.getUuid()));
+        }
+
+        try {
+            entityMgr.getMetaEntity("noSuchEntity");
+            fail("Should throw NoSuchMetaEntityException");
+        } catch (NoSuchMetaEntityException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void benchGetMetaEntity() {
+        List<MetaEntity> entities = entityMgr.getMetaEntities();
+
+        // warm up
+        for (MetaEntity me : entities) {
+            entityMgr.getMetaEntity(me.getName());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (MetaEntity me : entities) {
+                entityMgr.getMetaEntity(me.getName());
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long calls = (long) ROUNDS * entities.size();
+
+        logger.info("getMetaEntity over " + entities.size() + " entities: " + calls + " calls in " + nanos / 1000000 + "ms, " + (calls == 0 ? 0 : nanos / calls) + "ns per call");
+    }
+
+}
@@ -176,6 +176,11 @@ public class EntityTests {
         assertTrue(uuids.contains(ips.get(1).getUuid()));
         assertEquals(ip1.getUuid(), ips.get(0).getUuid());
         assertEquals(ip2.getUuid(), ips.get(1).getUuid());
+
+        // the uuids handed out are a copy
+        List<String> got = item.v("itemProps");
+        got.add(ip3.getUuid());
+        assertEquals(2, item.<List<String>>v("itemProps").size());
         
         List<Entity> mappings = dbSession.queryRawSql("item_itemProps_itemProp", "s_itemUuid = ?", new Object[]{item.getUuid()});
         assertEquals(2, mappings.size());
@@ -0,0 +1,118 @@
+package com.yotouch.test.core.entity;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.yotouch.base.PylonApplication;
+import com.yotouch.core.entity.Entity;
+import com.yotouch.core.helper.PaginationHelper;
+import com.yotouch.core.runtime.DbSession;
+import com.yotouch.core.runtime.YotouchApplication;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = PylonApplication.class)
+@Transactional
+public class KeysetPaginationTests {
+
+    // ages of the users, with ties so uuid has to order them
+    private static final int[] AGES = {3, 1, 2, 1, 3, 1, 2, 3};
+
+    private static final int ITEM_PER_PAGE = 3;
+
+    @Autowired
+    private YotouchApplication ytApp;
+
+    private DbSession dbSession;
+
+    private String nickname;
+
+    private List<Entity> users;
+
+    @Before
+    public void setup() {
+        this.dbSession = ytApp.getRuntime().createDbSession();
+        this.nickname = "keyset-" + UUID.randomUUID().toString();
+
+        List<Entity> list = new ArrayList<>();
+        for (int age : AGES) {
+            Entity u = dbSession.newEntity("user");
+            u.setValue("nickname", this.nickname);
+            u.setValue("age", age);
+            list.add(u);
+        }
+        this.users = dbSession.saveAll(list);
+    }
+
+    @Test
+    public void testAscending() {
+        Comparator<Entity> order = Comparator.<Entity>comparingInt(u -> u.v("age")).thenComparing(Entity::getUuid);
+        assertEquals(this.uuids(this.users, order), this.walk("age", false));
+    }
+
+    @Test
+    public void testDescending() {
+        Comparator<Entity> order = Comparator.<Entity>comparingInt(u -> u.v("age")).thenComparing(Entity::getUuid);
+        assertEquals(this.uuids(this.users, order.reversed()), this.walk("age", true));
+    }
+
+    @Test
+    public void testCreatedAt() {
+        // saved in one batch, most rows share their createdAt
+        List<Entity> expected = dbSession.queryRawSql("user", "nickname = ? ORDER BY createdAt DESC, uuid DESC", new Object[]{this.nickname});
+        assertEquals(AGES.length, expected.size());
+        assertEquals(this.uuids(expected, null), this.walk("createdAt", true));
+    }
+
+    /**
+     * @return uuids of every page from the first one, checking the page sizes and tokens on the way
+     */
+    private List<String> walk(String sortField, boolean descending) {
+        List<String> uuids = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+
+        do {
+            PaginationHelper<Entity> ph = new PaginationHelper<>(1, ITEM_PER_PAGE);
+            ph.setSortField(sortField);
+            ph.setDescending(descending);
+            ph.setPageToken(token);
+
+            dbSession.queryKeyset("user", "nickname = ?", new Object[]{this.nickname}, ph);
+            pages++;
+
+            List<Entity> items = ph.getItemList();
+            token = ph.getNextPageToken();
+            assertEquals(ph.isHasMore(), token != null);
+            if (token != null) {
+                assertEquals(ITEM_PER_PAGE, items.size());
+            }
+            for (Entity e : items) {
+                uuids.add(e.getUuid());
+            }
+        } while (token != null && pages <= AGES.length);
+
+        assertEquals((AGES.length + ITEM_PER_PAGE - 1) / ITEM_PER_PAGE, pages);
+        return uuids;
+    }
+
+    private List<String> uuids(List<Entity> entities, Comparator<Entity> order) {
+        return entities.stream()
+                .sorted(order == null ? (a, b) -> 0 : order)
+                .map(Entity::getUuid)
+                .collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.yotouch.test.core.helper;
+
+import static org.junit.Assert.*;
+
+import java.util.Calendar;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.yotouch.core.helper.KeysetCursor;
+
+public class KeysetCursorTests {
+
+    @Test
+    public void testRoundTrip() {
+        String uuid = UUID.randomUUID().toString();
+
+        KeysetCursor c = KeysetCursor.decode(new KeysetCursor("abc", uuid).encode());
+        assertEquals("abc", c.getValue());
+        assertEquals(uuid, c.getUuid());
+
+        c = KeysetCursor.decode(new KeysetCursor(42, uuid).encode());
+        assertEquals(42, ((Number) c.getValue()).intValue());
+
+        c = KeysetCursor.decode(new KeysetCursor(1.5, uuid).encode());
+        assertEquals(1.5, ((Number) c.getValue()).doubleValue(), 0);
+    }
+
+    @Test
+    public void testDatetimeMillis() {
+        Calendar cal = Calendar.getInstance();
+        cal.set(2017, Calendar.OCTOBER, 18, 12, 34, 56);
+        cal.set(Calendar.MILLISECOND, 789);
+        long millis = cal.getTimeInMillis();
+
+        String token = new KeysetCursor(millis, UUID.randomUUID().toString()).encode();
+        assertFalse(token.contains("+") || token.contains("/") || token.contains("="));
+
+        KeysetCursor c = KeysetCursor.decode(token);
+        assertTrue(c.getValue() instanceof Number);
+        assertEquals(millis, ((Number) c.getValue()).longValue());
+    }
+
+    @Test
+    public void testInvalidToken() {
+        String[] tokens = {"not a token", "", "e30", new KeysetCursor("abc", null).encode()};
+        for (String token : tokens) {
+            try {
+                KeysetCursor.decode(token);
+                fail("Decoded " + token);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}